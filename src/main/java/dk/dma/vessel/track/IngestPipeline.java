@@ -0,0 +1,208 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.vessel.track.store.TargetStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Shards the vessel packets by MMSI into a number of worker lanes.
+ * <p>
+ * Each lane is served by a single thread, so all packets of a given vessel target
+ * are merged by the same thread and in the order they were received.
+ * This takes the merging off the AIS bus thread and lets it scale with the number of cores.
+ */
+@Service
+public class IngestPipeline {
+
+    static final Logger LOG = LoggerFactory.getLogger(IngestPipeline.class);
+
+    static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    @Value("${ingestLanes:0}")
+    int laneCount;
+
+    @Value("${ingestQueueSize:10000}")
+    int queueSize;
+
+    @Autowired
+    TargetStore vesselStore;
+
+    Lane[] lanes;
+
+    /**
+     * Starts the worker lanes
+     */
+    @PostConstruct
+    public void init() {
+        int n = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        lanes = new Lane[n];
+        for (int i = 0; i < n; i++) {
+            lanes[i] = new Lane(i, queueSize);
+            lanes[i].start();
+        }
+        LOG.info("Started ingest pipeline with " + n + " lanes");
+    }
+
+    /**
+     * Stops the worker lanes
+     */
+    @PreDestroy
+    public void destroy() {
+        LOG.info("Shutting down ingest pipeline");
+        for (Lane lane : lanes) {
+            lane.interrupt();
+        }
+        for (Lane lane : lanes) {
+            try {
+                lane.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hands the packet over to the lane that owns the given MMSI.
+     * <p>
+     * Blocks if the lane is full, which in turn makes the AIS bus consumer queue
+     * absorb the load.
+     *
+     * @param packet the AIS packet
+     * @param mmsi the MMSI of the packet
+     */
+    public void submit(AisPacket packet, int mmsi) {
+        try {
+            lanes[laneIndex(mmsi, lanes.length)].queue.put(packet);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the index of the lane that owns the given MMSI
+     * @param mmsi the MMSI
+     * @param laneCount the number of lanes
+     * @return the index of the lane that owns the given MMSI
+     */
+    static int laneIndex(int mmsi, int laneCount) {
+        // MMSI numbers are clustered by MID, so mix the bits before sharding
+        int h = mmsi * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % laneCount;
+    }
+
+    /**
+     * Periodically log the throughput of the lanes.
+     * <p>
+     * Where the JVM supports it, the number of bytes allocated by the lane threads
+     * per merged message is logged as well. This includes the target store merge and
+     * any new vessel targets, so it should stay close to zero in steady state.
+     */
+    @Scheduled(cron="30 */1 * * * *")
+    public void logStatistics() {
+        StringBuilder str = new StringBuilder();
+        long total = 0, totalAllocated = 0;
+        for (Lane lane : lanes) {
+            long processed = lane.processed;
+            long delta = processed - lane.lastProcessed;
+            lane.lastProcessed = processed;
+            total += delta;
+
+            long allocated = allocatedBytes(lane);
+            long allocatedDelta = allocated - lane.lastAllocated;
+            lane.lastAllocated = allocated;
+            totalAllocated += allocatedDelta;
+
+            str.append(String.format(" [%d: %d msgs, %d bytes/msg, queue %d]",
+                    lane.index, delta, delta > 0 ? allocatedDelta / delta : 0, lane.queue.size()));
+        }
+        LOG.info("Ingest pipeline merged " + total + " messages in the last minute, "
+                + (total > 0 ? totalAllocated / total : 0) + " bytes allocated per message:" + str);
+    }
+
+    /**
+     * Returns the number of bytes allocated by the given lane thread, or 0 if not supported
+     * @param lane the lane
+     * @return the number of bytes allocated by the given lane thread
+     */
+    private static long allocatedBytes(Lane lane) {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            long allocated = ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(lane.getId());
+            return Math.max(allocated, 0L);
+        }
+        return 0L;
+    }
+
+    /**
+     * A worker lane that merges the packets of its slice of the MMSI space
+     */
+    class Lane extends Thread {
+
+        final int index;
+        final BlockingQueue<AisPacket> queue;
+        volatile long processed;
+        long lastProcessed;
+        long lastAllocated;
+
+        /**
+         * Constructor
+         * @param index the lane index
+         * @param queueSize the max number of queued packets
+         */
+        Lane(int index, int queueSize) {
+            super("ingest-lane-" + index);
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            setDaemon(true);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                AisPacket packet;
+                try {
+                    packet = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                try {
+                    // The packet caches the message decoded by VesselTrackHandler
+                    vesselStore.merge(packet, packet.tryGetAisMessage());
+                } catch (Exception e) {
+                    LOG.error("Error merging packet " + packet, e);
+                }
+                processed++;
+            }
+        }
+    }
+}
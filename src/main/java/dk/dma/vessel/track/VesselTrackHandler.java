@@ -27,6 +27,7 @@ import java.util.function.Consumer;
 
 /**
  * Receives AIS packets from the AIS bus and passes the packets to the underlying store
+ * via the MMSI-sharded ingest pipeline
  */
 @Service
 public class VesselTrackHandler implements Consumer<AisPacket> {
@@ -36,6 +37,9 @@ public class VesselTrackHandler implements Consumer<AisPacket> {
     @Autowired
     private TargetStore vesselStore;
 
+    @Autowired
+    private IngestPipeline pipeline;
+
     /**
      * {@inheritDoc}
      */
@@ -66,7 +70,7 @@ public class VesselTrackHandler implements Consumer<AisPacket> {
         switch (type) {
         case A:
         case B:
-            handleVessel(packet);
+            handleVessel(packet, message);
             break;
         default:
             break;
@@ -74,17 +78,16 @@ public class VesselTrackHandler implements Consumer<AisPacket> {
     }
 
     /**
-     * Merge the AIS packet into the target store
+     * Hand the AIS packet over to the ingest lane that merges it into the target store
      * @param packet the AIS packet
+     * @param message the decoded AIS message
      */
-    private void handleVessel(final AisPacket packet) {
-        final AisMessage message = packet.tryGetAisMessage();
-
+    private void handleVessel(final AisPacket packet, final AisMessage message) {
         // Reject invalid MMSI numbers
         if (message.getUserId() < 100000000 || message.getUserId() > 999999999) {
             return;
         }
 
-        vesselStore.merge(packet, message);
+        pipeline.submit(packet, message.getUserId());
     }
 }
@@ -0,0 +1,74 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+/**
+ * Simplifies a past track using the Douglas-Peucker algorithm.
+ * <p>
+ * The oldest and newest positions are kept, and the segment between them is recursively split at
+ * the position farthest from it, as long as that distance exceeds the tolerance.
+ * The recursion is unrolled using an explicit stack of index pairs.
+ */
+public class DouglasPeuckerSimplifier implements TrackSimplifier {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void simplify(TrackBuffer track, double tolerance) {
+        int n = track.size();
+        if (n < 3) {
+            return;
+        }
+
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[n - 1] = true;
+
+        // The pending segments are disjoint, so there are less than n of them
+        int[] stack = new int[2 * n];
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = n - 1;
+        while (sp > 0) {
+            int last = stack[--sp];
+            int first = stack[--sp];
+            float lat1 = track.getLat(first), lon1 = track.getLon(first);
+            float lat2 = track.getLat(last), lon2 = track.getLon(last);
+
+            double maxDist = -1;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double dist = GeoUtils.segmentDistance(track.getLat(i), track.getLon(i), lat1, lon1, lat2, lon2);
+                if (dist > maxDist) {
+                    maxDist = dist;
+                    index = i;
+                }
+            }
+
+            if (maxDist > tolerance) {
+                keep[index] = true;
+                if (index - first > 1) {
+                    stack[sp++] = first;
+                    stack[sp++] = index;
+                }
+                if (last - index > 1) {
+                    stack[sp++] = index;
+                    stack[sp++] = last;
+                }
+            }
+        }
+        track.retain(keep);
+    }
+}
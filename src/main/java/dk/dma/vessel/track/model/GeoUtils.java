@@ -0,0 +1,165 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+/**
+ * Geodesy functions working on primitive coordinates.
+ * <p>
+ * Used in the hot paths instead of creating {@code Position} objects for each computation.
+ */
+public class GeoUtils {
+
+    /** The equatorial earth radius in meters */
+    public static final double EARTH_RADIUS = 6378137.0;
+
+    /** The max latitude and longitude span in degrees, and the max latitude, of the fast distance approximation */
+    public static final double FAST_DISTANCE_MAX_SPAN = 1.0;
+    public static final double FAST_DISTANCE_MAX_LAT = 85.0;
+
+    /** The cosine of the latitudes 0 to 90 degrees in steps of 0.1 degree, plus one step for interpolation */
+    private static final double COS_STEPS = 10.0;
+    private static final double[] COS_TABLE = new double[902];
+    static {
+        for (int i = 0; i < COS_TABLE.length; i++) {
+            COS_TABLE[i] = Math.cos(Math.toRadians(i / COS_STEPS));
+        }
+    }
+
+    private GeoUtils() {
+    }
+
+    /**
+     * Computes the distance in meters between two positions.
+     * <p>
+     * Within {@code FAST_DISTANCE_MAX_SPAN} degrees of latitude and longitude, and up to
+     * {@code FAST_DISTANCE_MAX_LAT} degrees north or south, an equirectangular approximation
+     * is used, with the cosine of the mean latitude interpolated from a precomputed table.
+     * In that range the relative error compared to {@linkplain #rhumbLineDistance} is below 0.01%.
+     * Otherwise, the rhumb line distance is computed.
+     *
+     * @param lat1 the latitude of the first position
+     * @param lon1 the longitude of the first position
+     * @param lat2 the latitude of the second position
+     * @param lon2 the longitude of the second position
+     * @return the distance in meters
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = lat2 - lat1;
+        double dLon = wrapLongitude(lon2 - lon1);
+        if (Math.abs(dLat) > FAST_DISTANCE_MAX_SPAN || Math.abs(dLon) > FAST_DISTANCE_MAX_SPAN ||
+                Math.abs(lat1) > FAST_DISTANCE_MAX_LAT || Math.abs(lat2) > FAST_DISTANCE_MAX_LAT) {
+            return rhumbLineDistance(lat1, lon1, lat2, lon2);
+        }
+        double x = dLon * cosLat((lat1 + lat2) / 2);
+        return Math.toRadians(Math.sqrt(x * x + dLat * dLat)) * EARTH_RADIUS;
+    }
+
+    /**
+     * Returns the cosine of the given latitude, interpolated linearly from a precomputed table
+     * @param lat the latitude in degrees, between -90 and 90
+     * @return the cosine of the latitude
+     */
+    public static double cosLat(double lat) {
+        double a = Math.min(Math.abs(lat), 90.0) * COS_STEPS;
+        int i = (int)a;
+        return COS_TABLE[i] + (COS_TABLE[i + 1] - COS_TABLE[i]) * (a - i);
+    }
+
+    /**
+     * Computes the rhumb line distance in meters between two positions.
+     * Uses the same formula as {@code Position.rhumbLineDistanceTo()}.
+     *
+     * @param lat1 the latitude of the first position
+     * @param lon1 the longitude of the first position
+     * @param lat2 the latitude of the second position
+     * @param lon2 the longitude of the second position
+     * @return the rhumb line distance in meters
+     */
+    public static double rhumbLineDistance(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double dPhi = phi2 - phi1;
+        double dLon = Math.abs(Math.toRadians(lon2 - lon1));
+        double dPsi = Math.log(Math.tan(phi2 / 2 + Math.PI / 4) / Math.tan(phi1 / 2 + Math.PI / 4));
+
+        // East-west lines gives dPsi = 0
+        double q = Math.abs(dPsi) > 1e-12 ? dPhi / dPsi : Math.cos(phi1);
+
+        // If dLon is over 180 degrees take the shorter rhumb line across the anti-meridian
+        if (dLon > Math.PI) {
+            dLon = 2 * Math.PI - dLon;
+        }
+        return Math.sqrt(dPhi * dPhi + q * q * dLon * dLon) * EARTH_RADIUS;
+    }
+
+    /**
+     * Computes the distance in meters from a position to the line segment between two other positions.
+     * <p>
+     * The positions are projected onto a local equirectangular plane at the first end point of the
+     * segment, which is accurate for the short segments of a past track.
+     *
+     * @param lat the latitude of the position
+     * @param lon the longitude of the position
+     * @param lat1 the latitude of the first end point of the segment
+     * @param lon1 the longitude of the first end point of the segment
+     * @param lat2 the latitude of the second end point of the segment
+     * @param lon2 the longitude of the second end point of the segment
+     * @return the distance in meters from the position to the segment
+     */
+    public static double segmentDistance(double lat, double lon, double lat1, double lon1, double lat2, double lon2) {
+        double cosLat = cosLat(lat1);
+        double bx = wrapLongitude(lon2 - lon1) * cosLat, by = lat2 - lat1;
+        double px = wrapLongitude(lon - lon1) * cosLat, py = lat - lat1;
+        double len2 = bx * bx + by * by;
+        double t = len2 > 0 ? Math.max(0, Math.min(1, (px * bx + py * by) / len2)) : 0;
+        double dx = px - t * bx, dy = py - t * by;
+        return Math.toRadians(Math.sqrt(dx * dx + dy * dy)) * EARTH_RADIUS;
+    }
+
+    /**
+     * Computes the area in square meters of the triangle between three positions.
+     * <p>
+     * The positions are projected onto a local equirectangular plane at the first position.
+     *
+     * @param lat1 the latitude of the first position
+     * @param lon1 the longitude of the first position
+     * @param lat2 the latitude of the second position
+     * @param lon2 the longitude of the second position
+     * @param lat3 the latitude of the third position
+     * @param lon3 the longitude of the third position
+     * @return the area in square meters of the triangle
+     */
+    public static double triangleArea(double lat1, double lon1, double lat2, double lon2, double lat3, double lon3) {
+        double cosLat = cosLat(lat1);
+        double bx = wrapLongitude(lon2 - lon1) * cosLat, by = lat2 - lat1;
+        double cx = wrapLongitude(lon3 - lon1) * cosLat, cy = lat3 - lat1;
+        double scale = Math.toRadians(1) * EARTH_RADIUS;
+        return Math.abs(bx * cy - by * cx) / 2 * scale * scale;
+    }
+
+    /**
+     * Wraps a longitude difference into the range [-180, 180] degrees
+     * @param dLon the longitude difference
+     * @return the wrapped longitude difference
+     */
+    public static double wrapLongitude(double dLon) {
+        if (dLon > 180) {
+            return dLon - 360;
+        } else if (dLon < -180) {
+            return dLon + 360;
+        }
+        return dLon;
+    }
+}
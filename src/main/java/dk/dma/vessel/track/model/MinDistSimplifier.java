@@ -0,0 +1,33 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+/**
+ * Keeps the positions that are more than the tolerance away from the previously kept position,
+ * starting from the newest position.
+ * <p>
+ * This is the legacy down-sampling of the past tracks. It is cheap, but keeps many positions
+ * on straight legs and may cut corners in turns.
+ */
+public class MinDistSimplifier implements TrackSimplifier {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void simplify(TrackBuffer track, double tolerance) {
+        track.downSample((int)Math.round(tolerance), Long.MIN_VALUE);
+    }
+}
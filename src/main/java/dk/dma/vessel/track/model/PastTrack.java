@@ -14,90 +14,276 @@
  */
 package dk.dma.vessel.track.model;
 
-import dk.dma.enav.model.geometry.Position;
-
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.TreeSet;
 
 /**
- * Represents a past-track for a single MMSI
+ * Represents the in-memory past-track for a single MMSI.
+ * <p>
+ * The positions are kept in a ring buffer of parallel primitive arrays in chronological order.
+ * The buffer is complete from the {@code coveredSince} time, i.e. it contains all past track
+ * positions from that time. It grows up to a max size, after which the oldest position
+ * is overwritten and the covered period shrinks accordingly.
+ * <p>
+ * In addition, the past-track may maintain a number of coarser levels, each of which holds the
+ * positions that are at least the min distance of the level apart. The levels are updated
+ * incrementally as positions are appended, so that requests for a down-sampled past-track
+ * can be served from the closest level rather than from all positions.
+ * <p>
+ * The past-track is not thread-safe. Callers synchronize on the owning vessel target.
  */
 @SuppressWarnings("unused")
 public class PastTrack implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
-    private TreeSet<PastTrackPos> track = new TreeSet<>();
+    /** Times are stored as seconds since 2015-01-01 */
+    private static final long TIME_BASE = 1420070400000L;
+
+    private final int maxSize;
+    private float[] lat;
+    private float[] lon;
+    private short[] cog;
+    private short[] sog;
+    private int[] time;
+    private int head;
+    private int size;
+    private long coveredSince;
+
+    /** The min distances in meters of the coarser levels, in ascending order, and the levels */
+    private final int[] levelDists;
+    private final PastTrack[] levels;
 
-    public synchronized void add(PastTrackPos pos) {
-        track.add(pos);
+    /**
+     * Constructor
+     * @param coveredSince the time from which the past-track is complete
+     * @param maxSize the max number of positions. Must be a power of two
+     */
+    public PastTrack(long coveredSince, int maxSize) {
+        this(coveredSince, maxSize, new int[0]);
     }
 
-    public synchronized List<PastTrackPos> asList() {
-        return new ArrayList<>(track);
+    /**
+     * Constructor
+     * @param coveredSince the time from which the past-track is complete
+     * @param maxSize the max number of positions per level. Must be a power of two
+     * @param levelDists the min distances in meters of the coarser levels, in ascending order
+     */
+    public PastTrack(long coveredSince, int maxSize, int[] levelDists) {
+        if (maxSize <= 0 || Integer.bitCount(maxSize) != 1) {
+            throw new IllegalArgumentException("The max size must be a power of two: " + maxSize);
+        }
+        this.coveredSince = coveredSince;
+        this.maxSize = maxSize;
+        this.levelDists = levelDists;
+        this.levels = new PastTrack[levelDists.length];
+        for (int l = 0; l < levels.length; l++) {
+            levels[l] = new PastTrack(coveredSince, maxSize);
+        }
+        allocate(Math.min(16, maxSize));
     }
 
-    public synchronized int trim(long ttl) {
-        long maxAge = System.currentTimeMillis() - ttl;
-        List<PastTrackPos> removeSet = new ArrayList<>();
-        for (PastTrackPos pos : track) {
-            if (pos.getTime().getTime() < maxAge) {
-                removeSet.add(pos);
+    private void allocate(int capacity) {
+        lat = new float[capacity];
+        lon = new float[capacity];
+        cog = new short[capacity];
+        sog = new short[capacity];
+        time = new int[capacity];
+    }
+
+    /**
+     * Appends a position, if it is newer than, and sufficiently far from, the newest position
+     * @param lat the latitude
+     * @param lon the longitude
+     * @param cog the course over ground
+     * @param sog the speed over ground
+     * @param time the time of the position
+     * @param minDist the min distance in meters to the newest position
+     * @param minInterval the min time in ms since the newest position
+     * @return if the position was appended
+     */
+    public boolean add(float lat, float lon, float cog, float sog, long time, int minDist, long minInterval) {
+        if (size > 0) {
+            int last = index(size - 1);
+            if (time < toMillis(this.time[last]) + minInterval ||
+                    GeoUtils.distance(this.lat[last], this.lon[last], lat, lon) <= minDist) {
+                return false;
+            }
+        }
+
+        if (size == this.time.length) {
+            if (size < maxSize) {
+                grow(size * 2);
             } else {
-                break;
+                // Overwrite the oldest position
+                head = index(1);
+                size--;
+                coveredSince = Math.max(coveredSince, toMillis(this.time[index(0)]));
             }
         }
-        for (PastTrackPos old : removeSet) {
-            track.remove(old);
+        int i = index(size++);
+        this.lat[i] = lat;
+        this.lon[i] = lon;
+        this.cog[i] = (short)Math.round(cog * 10f);
+        this.sog[i] = (short)Math.round(sog * 10f);
+        this.time[i] = toSeconds(time);
+
+        for (int l = 0; l < levels.length; l++) {
+            levels[l].add(lat, lon, cog, sog, time, levelDists[l], 0L);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the positions older than the given time
+     * @param since the time of the oldest position to keep
+     * @return the number of removed positions
+     */
+    public int trim(long since) {
+        int removed = 0;
+        while (size > 0 && toMillis(time[head]) < since) {
+            head = index(1);
+            size--;
+            removed++;
+        }
+        coveredSince = Math.max(coveredSince, since);
+        for (PastTrack level : levels) {
+            level.trim(since);
         }
-        return removeSet.size();
+        return removed;
     }
 
-    public synchronized PastTrackPos newestPos() {
-        if (track.size() > 0) {
-            return track.last();
+    /**
+     * Adds the given positions that are older than the oldest position of the past-track,
+     * and extends the covered period back to the given time
+     * @param positions the positions to add, in chronological order
+     * @param since the time from which the given positions are complete
+     */
+    public void seed(TrackBuffer positions, long since) {
+        long oldest = size > 0 ? toMillis(time[head]) : Long.MAX_VALUE;
+        positions.sort();
+        int from = 0;
+        while (from < positions.size() && positions.getTime(from) < since) {
+            from++;
+        }
+        int to = from;
+        while (to < positions.size() && positions.getTime(to) < oldest) {
+            to++;
+        }
+        int olderCnt = to - from;
+
+        // Copy the older positions followed by the current positions, keeping at most maxSize positions
+        int total = Math.min(olderCnt + size, maxSize);
+        int skip = olderCnt + size - total;
+        int capacity = Math.min(Integer.highestOneBit(Math.max(total, 8) - 1) << 1, maxSize);
+        float[] lat = new float[capacity], lon = new float[capacity];
+        short[] cog = new short[capacity], sog = new short[capacity];
+        int[] time = new int[capacity];
+        int n = 0;
+        for (int j = from + skip; j < to; j++) {
+            lat[n] = positions.getLat(j);
+            lon[n] = positions.getLon(j);
+            cog[n] = (short)Math.round(positions.getCog(j) * 10f);
+            sog[n] = (short)Math.round(positions.getSog(j) * 10f);
+            time[n++] = toSeconds(positions.getTime(j));
+        }
+        for (int j = Math.max(0, skip - olderCnt); j < size; j++) {
+            int i = index(j);
+            lat[n] = this.lat[i];
+            lon[n] = this.lon[i];
+            cog[n] = this.cog[i];
+            sog[n] = this.sog[i];
+            time[n++] = this.time[i];
+        }
+        this.lat = lat;
+        this.lon = lon;
+        this.cog = cog;
+        this.sog = sog;
+        this.time = time;
+        this.head = 0;
+        this.size = n;
+        coveredSince = skip > 0 ? toMillis(time[0]) : Math.min(coveredSince, since);
+
+        // Rebuild the coarser levels from all positions
+        for (int l = 0; l < levels.length; l++) {
+            PastTrack level = new PastTrack(coveredSince, maxSize);
+            for (int j = 0; j < size; j++) {
+                level.add(lat[j], lon[j], cog[j] / 10f, sog[j] / 10f, toMillis(time[j]), levelDists[l], 0L);
+            }
+            levels[l] = level;
         }
-        return null;
     }
 
-    public synchronized int size() {
-        return track.size();
+    /**
+     * Appends the positions since the given time to the buffer, in chronological order
+     * @param since the time of the oldest position to copy
+     * @param result the buffer to append the positions to
+     */
+    public void copyTo(long since, TrackBuffer result) {
+        int j = size;
+        while (j > 0 && toMillis(time[index(j - 1)]) >= since) {
+            j--;
+        }
+        for (; j < size; j++) {
+            int i = index(j);
+            result.add(lat[i], lon[i], cog[i] / 10f, sog[i] / 10f, toMillis(time[i]));
+        }
     }
 
-    public static List<PastTrackPos> downSample(List<PastTrackPos> list, int minPastTrackDist, long age) {
-        long maxAge = System.currentTimeMillis() - age;
-        ArrayList<PastTrackPos> downSampled = new ArrayList<>();
-        if (list.size() == 0) {
-            return downSampled;
-        }
-        downSampled.add(list.get(0));
-        int i = 0;
-        int n;
-        while (i < list.size()) {
-            PastTrackPos pos = list.get(i);
-            n = i + 1;
-            while (n < list.size()) {
-                PastTrackPos next = list.get(n);
-                if (distance(pos, next) > minPastTrackDist) {
-                    downSampled.add(next);
-                    break;
-                }
-                n++;
+    /**
+     * Appends the positions since the given time to the buffer, in chronological order,
+     * from the coarsest level whose min distance does not exceed the given distance
+     * and which covers the period
+     * @param since the time of the oldest position to copy
+     * @param minDist the min distance in meters between the positions requested
+     * @param result the buffer to append the positions to
+     */
+    public void copyTo(long since, int minDist, TrackBuffer result) {
+        PastTrack track = this;
+        for (int l = 0; l < levels.length && levelDists[l] <= minDist; l++) {
+            if (levels[l].getCoveredSince() <= since) {
+                track = levels[l];
             }
-            i = n;
         }
-        int start = 0;
-        while (start < downSampled.size() && downSampled.get(start).getTime().getTime() < maxAge) {
-            start++;
+        track.copyTo(since, result);
+    }
+
+    /**
+     * Returns the time from which the past-track is complete
+     * @return the time from which the past-track is complete
+     */
+    public long getCoveredSince() {
+        return coveredSince;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow(int capacity) {
+        float[] lat = this.lat, lon = this.lon;
+        short[] cog = this.cog, sog = this.sog;
+        int[] time = this.time;
+        allocate(capacity);
+        for (int j = 0; j < size; j++) {
+            int i = (head + j) & (lat.length - 1);
+            this.lat[j] = lat[i];
+            this.lon[j] = lon[i];
+            this.cog[j] = cog[i];
+            this.sog[j] = sog[i];
+            this.time[j] = time[i];
         }
-        return downSampled.subList(start, downSampled.size());
+        head = 0;
     }
 
-    public static double distance(PastTrackPos pos1, PastTrackPos pos2) {
-        return Position.create(pos1.getLat(), pos1.getLon()).rhumbLineDistanceTo(Position.create(pos2.getLat(), pos2.getLon()));
+    private int index(int j) {
+        return (head + j) & (time.length - 1);
     }
 
-}
+    private static int toSeconds(long millis) {
+        return (int)((millis - TIME_BASE) / 1000L);
+    }
 
+    private static long toMillis(int seconds) {
+        return TIME_BASE + seconds * 1000L;
+    }
+}
@@ -26,6 +26,13 @@ import javax.validation.constraints.NotNull;
 import java.io.Serializable;
 import java.util.Date;
 
+/**
+ * A past track position.
+ * <p>
+ * Past tracks are stored as segments in the day tables of the {@code PastTrackPartitions}. The entity table
+ * only holds positions stored before the day tables were introduced, until they are moved to the day tables
+ * by the {@code PastTrackMigration}.
+ */
 @Entity
 @SuppressWarnings("unused")
 public class PastTrackPos implements Serializable, Comparable<PastTrackPos> {
@@ -53,10 +60,10 @@ public class PastTrackPos implements Serializable, Comparable<PastTrackPos> {
     }
 
     public PastTrackPos(VesselTarget target) {
-        this.lat = target.getLat();
-        this.lon = target.getLon();
-        this.cog = target.getCog();
-        this.sog = target.getSog();
+        this.lat = target.getLatValue();
+        this.lon = target.getLonValue();
+        this.cog = target.getCogValue();
+        this.sog = target.getSogValue();
         this.time = target.getLastPosReport();
     }
 
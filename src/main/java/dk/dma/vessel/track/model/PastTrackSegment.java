@@ -0,0 +1,191 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+import java.util.Arrays;
+
+/**
+ * Builds the past track segment of a vessel for a single hour.
+ * <p>
+ * A segment is stored as a sequence of chunks, one per instance that has appended to it.
+ * A chunk consists of the number of positions followed by the positions, each encoded as
+ * the zig-zag varint deltas to the previous position of the chunk, starting from zero:
+ * <ul>
+ *     <li>time in seconds since the start of the hour</li>
+ *     <li>latitude and longitude in 1/100000 degrees</li>
+ *     <li>cog in 1/10 degrees and sog in 1/10 knots</li>
+ * </ul>
+ * The builder keeps the chunk of this instance, which is rewritten in place whenever positions are appended.
+ * <p>
+ * The builder is not thread-safe. Callers synchronize on the owning vessel target.
+ */
+public class PastTrackSegment {
+
+    public static final long HOUR = 3600000L;
+
+    private final long hourStart;
+    private byte[] buf = new byte[64];
+    private int length;
+    private int points;
+    private int prevTime, prevLat, prevLon, prevCog, prevSog;
+    private long lastTime = Long.MIN_VALUE;
+
+    // The chunk as last committed to the database
+    private int committedLength;
+    private int committedPoints;
+
+    /**
+     * Constructor
+     * @param hourStart the start of the hour of the segment
+     */
+    public PastTrackSegment(long hourStart) {
+        this.hourStart = hourStart;
+    }
+
+    /**
+     * Returns the start of the hour of the given time
+     * @param time the time
+     * @return the start of the hour of the given time
+     */
+    public static long hourStart(long time) {
+        return time - Math.floorMod(time, HOUR);
+    }
+
+    /**
+     * Appends a position to the chunk
+     * @param pos the position
+     * @return if the position was appended, i.e. if it is newer than the last position and within the hour
+     */
+    public boolean append(PastTrackPos pos) {
+        long time = pos.getTime().getTime();
+        if (time <= lastTime || hourStart(time) != hourStart) {
+            return false;
+        }
+
+        int t = (int)((time - hourStart) / 1000L);
+        int lat = Math.round(pos.getLat() * 100000f);
+        int lon = Math.round(pos.getLon() * 100000f);
+        int cog = Math.round(pos.getCog() * 10f);
+        int sog = Math.round(pos.getSog() * 10f);
+
+        if (buf.length - length < 5 * 5) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        length = putVarint(buf, length, zigZag(t - prevTime));
+        length = putVarint(buf, length, zigZag(lat - prevLat));
+        length = putVarint(buf, length, zigZag(lon - prevLon));
+        length = putVarint(buf, length, zigZag(cog - prevCog));
+        length = putVarint(buf, length, zigZag(sog - prevSog));
+        prevTime = t;
+        prevLat = lat;
+        prevLon = lon;
+        prevCog = cog;
+        prevSog = sog;
+        lastTime = time;
+        points++;
+        return true;
+    }
+
+    /**
+     * Returns the encoded chunk of this builder
+     * @return the encoded chunk
+     */
+    public byte[] toChunk() {
+        byte[] chunk = new byte[length + 5];
+        int pos = putVarint(chunk, 0, points);
+        System.arraycopy(buf, 0, chunk, pos, length);
+        return Arrays.copyOf(chunk, pos + length);
+    }
+
+    /**
+     * Records that the given chunk has been committed to the database
+     * @param chunk the committed chunk
+     * @param points the number of positions of the chunk
+     */
+    public void committed(byte[] chunk, int points) {
+        this.committedLength = chunk.length;
+        this.committedPoints = points;
+    }
+
+    public long getHourStart() {
+        return hourStart;
+    }
+
+    public int getPoints() {
+        return points;
+    }
+
+    public int getCommittedLength() {
+        return committedLength;
+    }
+
+    public int getCommittedPoints() {
+        return committedPoints;
+    }
+
+    /**
+     * Decodes the positions of a segment
+     * @param data the segment data
+     * @param hourStart the start of the hour of the segment
+     * @param since only positions after this time are decoded
+     * @param result the buffer to append the positions to
+     */
+    public static void decode(byte[] data, long hourStart, long since, TrackBuffer result) {
+        int[] pos = { 0 };
+        while (pos[0] < data.length) {
+            int points = getVarint(data, pos);
+            int t = 0, lat = 0, lon = 0, cog = 0, sog = 0;
+            for (int i = 0; i < points; i++) {
+                t += unZigZag(getVarint(data, pos));
+                lat += unZigZag(getVarint(data, pos));
+                lon += unZigZag(getVarint(data, pos));
+                cog += unZigZag(getVarint(data, pos));
+                sog += unZigZag(getVarint(data, pos));
+                long time = hourStart + t * 1000L;
+                if (time > since) {
+                    result.add(lat / 100000f, lon / 100000f, cog / 10f, sog / 10f, time);
+                }
+            }
+        }
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int putVarint(byte[] buf, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf[pos++] = (byte)((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte)value;
+        return pos;
+    }
+
+    private static int getVarint(byte[] buf, int[] pos) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of past track positions held in parallel primitive arrays.
+ * <p>
+ * Used on the past track read path instead of lists of {@code PastTrackPos} objects, so that
+ * long past tracks can be loaded, down-sampled and serialized without creating an object per position.
+ * The positions are kept in chronological order.
+ * <p>
+ * The buffer is not thread-safe.
+ */
+public class TrackBuffer {
+
+    private float[] lat;
+    private float[] lon;
+    private float[] cog;
+    private float[] sog;
+    private long[] time;
+    private int size;
+    private boolean ordered = true;
+
+    /**
+     * Constructor
+     */
+    public TrackBuffer() {
+        this(64);
+    }
+
+    /**
+     * Constructor
+     * @param capacity the initial capacity
+     */
+    public TrackBuffer(int capacity) {
+        capacity = Math.max(capacity, 8);
+        lat = new float[capacity];
+        lon = new float[capacity];
+        cog = new float[capacity];
+        sog = new float[capacity];
+        time = new long[capacity];
+    }
+
+    /**
+     * Appends a position
+     * @param lat the latitude
+     * @param lon the longitude
+     * @param cog the course over ground
+     * @param sog the speed over ground
+     * @param time the time of the position
+     */
+    public void add(float lat, float lon, float cog, float sog, long time) {
+        if (size == this.time.length) {
+            int capacity = size * 2;
+            this.lat = Arrays.copyOf(this.lat, capacity);
+            this.lon = Arrays.copyOf(this.lon, capacity);
+            this.cog = Arrays.copyOf(this.cog, capacity);
+            this.sog = Arrays.copyOf(this.sog, capacity);
+            this.time = Arrays.copyOf(this.time, capacity);
+        }
+        if (size > 0 && time < this.time[size - 1]) {
+            ordered = false;
+        }
+        this.lat[size] = lat;
+        this.lon[size] = lon;
+        this.cog[size] = cog;
+        this.sog[size] = sog;
+        this.time[size++] = time;
+    }
+
+    /**
+     * Appends a position
+     * @param pos the position
+     */
+    public void add(PastTrackPos pos) {
+        add(pos.getLat(), pos.getLon(), pos.getCog(), pos.getSog(), pos.getTime().getTime());
+    }
+
+    /**
+     * Returns a copy of the buffer
+     * @return a copy of the buffer
+     */
+    public TrackBuffer copy() {
+        TrackBuffer copy = new TrackBuffer(size);
+        System.arraycopy(lat, 0, copy.lat, 0, size);
+        System.arraycopy(lon, 0, copy.lon, 0, size);
+        System.arraycopy(cog, 0, copy.cog, 0, size);
+        System.arraycopy(sog, 0, copy.sog, 0, size);
+        System.arraycopy(time, 0, copy.time, 0, size);
+        copy.size = size;
+        copy.ordered = ordered;
+        return copy;
+    }
+
+    /**
+     * Sorts the positions chronologically, if they were not appended in order.
+     * <p>
+     * The positions are mostly appended in order, so an insertion sort is used.
+     */
+    public void sort() {
+        if (ordered) {
+            return;
+        }
+        for (int i = 1; i < size; i++) {
+            float lat = this.lat[i], lon = this.lon[i], cog = this.cog[i], sog = this.sog[i];
+            long time = this.time[i];
+            int j = i - 1;
+            while (j >= 0 && this.time[j] > time) {
+                move(j, j + 1);
+                j--;
+            }
+            set(j + 1, lat, lon, cog, sog, time);
+        }
+        ordered = true;
+    }
+
+    /**
+     * Down-samples the positions in place, so that consecutive positions are more than
+     * the given distance apart, and drops the positions older than the given time.
+     * <p>
+     * The positions are visited in a single pass from the newest one, which is always kept,
+     * and a position is kept if it is more than the min distance from the last kept position.
+     *
+     * @param minDist the min distance in meters between positions
+     * @param since the time of the oldest position to keep
+     */
+    public void downSample(int minDist, long since) {
+        sort();
+        int kept = size;
+        for (int i = size - 1; i >= 0 && time[i] >= since; i--) {
+            if (kept == size ||
+                    GeoUtils.distance(lat[kept], lon[kept], lat[i], lon[i]) > minDist) {
+                move(i, --kept);
+            }
+        }
+        int n = size - kept;
+        System.arraycopy(lat, kept, lat, 0, n);
+        System.arraycopy(lon, kept, lon, 0, n);
+        System.arraycopy(cog, kept, cog, 0, n);
+        System.arraycopy(sog, kept, sog, 0, n);
+        System.arraycopy(time, kept, time, 0, n);
+        size = n;
+    }
+
+    /**
+     * Removes the positions that are not flagged to be kept, preserving the order of the rest
+     * @param keep for each position, whether to keep it
+     */
+    public void retain(boolean[] keep) {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) {
+                move(i, n++);
+            }
+        }
+        size = n;
+    }
+
+    private void move(int from, int to) {
+        set(to, lat[from], lon[from], cog[from], sog[from], time[from]);
+    }
+
+    private void set(int i, float lat, float lon, float cog, float sog, long time) {
+        this.lat[i] = lat;
+        this.lon[i] = lon;
+        this.cog[i] = cog;
+        this.sog[i] = sog;
+        this.time[i] = time;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public float getLat(int i) {
+        return lat[i];
+    }
+
+    public float getLon(int i) {
+        return lon[i];
+    }
+
+    public float getCog(int i) {
+        return cog[i];
+    }
+
+    public float getSog(int i) {
+        return sog[i];
+    }
+
+    public long getTime(int i) {
+        return time[i];
+    }
+
+    /**
+     * Returns the time of the newest position, or {@code Long.MIN_VALUE} if the buffer is empty
+     * @return the time of the newest position
+     */
+    public long getLastTime() {
+        sort();
+        return size > 0 ? time[size - 1] : Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,64 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+/**
+ * Simplifies a past track in place, by removing positions that contribute little to its shape.
+ * <p>
+ * The simplifiers work on the primitive arrays of a {@linkplain TrackBuffer} in chronological order.
+ * The tolerance is given in meters, and may be derived from the zoom level of the map
+ * that the past track is displayed on, using {@linkplain #zoomTolerance(int, double)}.
+ */
+public interface TrackSimplifier {
+
+    /** The ground resolution in meters per pixel of a Web Mercator map at zoom level 0 at the equator */
+    double ZOOM_0_RESOLUTION = 2 * Math.PI * GeoUtils.EARTH_RADIUS / 256;
+
+    /**
+     * Simplifies the past track in place. The newest position is always kept
+     * @param track the past track
+     * @param tolerance the tolerance in meters
+     */
+    void simplify(TrackBuffer track, double tolerance);
+
+    /**
+     * Returns the simplifier with the given name
+     * @param name the name, either "douglas-peucker", "visvalingam" or "min-dist"
+     * @return the simplifier with the given name
+     */
+    static TrackSimplifier forName(String name) {
+        switch (name) {
+            case "douglas-peucker":
+                return new DouglasPeuckerSimplifier();
+            case "visvalingam":
+                return new VisvalingamSimplifier();
+            case "min-dist":
+                return new MinDistSimplifier();
+            default:
+                throw new IllegalArgumentException("Unknown track simplifier " + name);
+        }
+    }
+
+    /**
+     * Returns the tolerance in meters corresponding to one pixel of a Web Mercator map
+     * at the given zoom level and latitude
+     * @param zoom the zoom level
+     * @param lat the latitude
+     * @return the tolerance in meters
+     */
+    static double zoomTolerance(int zoom, double lat) {
+        return ZOOM_0_RESOLUTION * Math.cos(Math.toRadians(lat)) / Math.pow(2, zoom);
+    }
+}
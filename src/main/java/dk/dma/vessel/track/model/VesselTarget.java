@@ -25,28 +25,37 @@ import dk.dma.ais.message.NavigationalStatus;
 import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.packet.AisPacketTags;
 import dk.dma.ais.packet.AisPacketTags.SourceType;
+import dk.dma.ais.message.AisPosition;
 import dk.dma.enav.model.Country;
-import dk.dma.enav.model.geometry.Position;
 import org.apache.commons.lang.StringUtils;
 
-import javax.persistence.CascadeType;
+import javax.persistence.Access;
+import javax.persistence.AccessType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
-import javax.persistence.OneToOne;
+import javax.persistence.Index;
+import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 import javax.persistence.Transient;
 import javax.validation.constraints.NotNull;
 import java.io.Serializable;
 import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * Vessel target entity
  */
 @Entity
+@Access(AccessType.FIELD)
+@Table(indexes = {
+        @Index(name = "idx_vessel_target_last_report", columnList = "lastReport"),
+        @Index(name = "idx_vessel_target_modified", columnList = "modified")
+})
 @SuppressWarnings("unused")
 public class VesselTarget implements Serializable {
 
@@ -64,9 +73,36 @@ public class VesselTarget implements Serializable {
 
     public enum State { NONE, NEW, UPDATED }
 
+    /** The kinematic fields that must be defined for a valid position */
+    private static final int VALID_POS_FIELDS =
+            VesselTargetCodec.LAT | VesselTargetCodec.LON | VesselTargetCodec.COG | VesselTargetCodec.SOG;
+
+    /**
+     * Two-letter country codes indexed by MID, i.e. the first three digits of a 9-digit MMSI.
+     * Saves a Country lookup and the associated string handling for every merged packet.
+     */
+    private static final String[] MID_COUNTRIES = new String[1000];
+
+    static {
+        for (int mid = 100; mid < MID_COUNTRIES.length; mid++) {
+            Country c = Country.getCountryForMmsi(mid * 1000000);
+            if (c != null && StringUtils.isNotBlank(c.getTwoLetter())) {
+                MID_COUNTRIES[mid] = c.getTwoLetter();
+            }
+        }
+    }
+
+    /**
+     * The epoch day of the current day, and the time at which it ends
+     */
+    private static volatile long[] currentDay = { 0L, 0L };
+
     @Transient
     State changed = State.NONE;
 
+    @Transient
+    boolean queued;
+
     @Id
     int mmsi;
 
@@ -83,17 +119,34 @@ public class VesselTarget implements Serializable {
     @Temporal(TemporalType.TIMESTAMP)
     Date lastReport;
 
+    // *** The time the row was last written, as assigned by the database. Used by slaves to sync incrementally
+    @Column(insertable = false, updatable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    Date modified;
+
     // **** Position Data - Instantiate with invalid data
     @Temporal(TemporalType.TIMESTAMP)
     Date lastPosReport;
-    Float lat;
-    Float lon;
-    Float cog;
-    Float sog;
-    Short heading;
-    Short rot;
     NavigationalStatus navStatus;
 
+    // **** Kinematic data, kept as primitives so that merging a position report does not allocate.
+    // The fields are persisted through the boxed property accessors, and their presence is kept
+    // in a mask of VesselTargetCodec field bits
+    @Transient
+    float lat;
+    @Transient
+    float lon;
+    @Transient
+    float cog;
+    @Transient
+    float sog;
+    @Transient
+    short heading;
+    @Transient
+    short rot;
+    @Transient
+    int kinematics;
+
     // **** Static Data
     @Temporal(TemporalType.TIMESTAMP)
     Date lastStaticReport;
@@ -111,13 +164,37 @@ public class VesselTarget implements Serializable {
     @Column(columnDefinition="BINARY(" + (MAX_SPEED_DAYS * 2) + ")")
     byte[] maxSpeed;
 
-    // *** Past track reference
-    @OneToOne(cascade = CascadeType.ALL)
+    // *** The last past track position, persisted as plain columns through the pastTrack* property accessors
+    @Transient
     PastTrackPos lastPastTrackPos;
 
     @Transient
     PastTrackPos newPastTrackPos;
 
+    // *** In-memory past track
+    @Transient
+    PastTrack pastTrack;
+
+    // *** The past track segments persisted by this instance, with the current hour last.
+    // Segments of past hours are kept until all their positions have been committed
+    @Transient
+    List<PastTrackSegment> pastTrackSegments;
+
+    // *** The spatial index grid cell of the target, or -1 if not indexed
+    @Transient
+    int gridCell = -1;
+
+    // *** The position at which the target is counted in the cluster index, or NaN if not counted
+    @Transient
+    float clusterLat = Float.NaN;
+
+    @Transient
+    float clusterLon = Float.NaN;
+
+    // *** The slot of the target in the attribute index, or -1 if not indexed
+    @Transient
+    int attributeSlot = -1;
+
 
     /**
      * Constructor
@@ -135,16 +212,20 @@ public class VesselTarget implements Serializable {
     }
 
     /**
-     * Merges the information of the AIS packet wiht this vessel target
+     * Merges the information of the AIS packet wiht this vessel target.
+     * <p>
+     * All packets of a target are merged by the same ingest lane, so the monitor is
+     * only ever contended by the persistence process.
      * @param packet the AIS packet
      * @param message the AIS message
+     * @return the {@linkplain VesselTargetCodec} mask of the updated fields, or 0 if nothing was updated
      */
-    public synchronized void merge(AisPacket packet, AisMessage message) {
+    public synchronized int merge(AisPacket packet, AisMessage message) {
 
         Objects.requireNonNull(packet);
         Objects.requireNonNull(message);
 
-        boolean updated = false;
+        int updated = 0;
 
         // Sanity check
         if (message.getUserId() != mmsi) {
@@ -154,88 +235,100 @@ public class VesselTarget implements Serializable {
         // Update target type
         if (message.getTargetType() != targetType) {
             targetType = message.getTargetType();
-            updated = true;
+            updated |= VesselTargetCodec.TARGET_TYPE;
         }
 
         // Update country
-        Country c = Country.getCountryForMmsi(message.getUserId());
-        if (c != null && StringUtils.isNotBlank(c.getTwoLetter()) && !c.getTwoLetter().equals(country)) {
-            country = c.getTwoLetter();
-            updated = true;
+        String c = getCountryCode(mmsi);
+        if (c != null && !c.equals(country)) {
+            country = c;
+            updated |= VesselTargetCodec.COUNTRY;
         }
 
+        Date timestamp = packet.getTimestamp();
+
         // Position Data
         if (message instanceof IVesselPositionMessage) {
-            updated |= updateVesselPositionMessage((IVesselPositionMessage) message, packet.getTimestamp());
+            updated |= updateVesselPositionMessage((IVesselPositionMessage) message, timestamp);
         }
 
         // Static Data
         if (message instanceof AisStaticCommon) {
-            updated |= updateVesselStaticMessage((AisStaticCommon) message, packet.getTimestamp());
+            updated |= updateVesselStaticMessage((AisStaticCommon) message, timestamp);
         }
 
         // Only update the lastReport time stamp if any fields have been updated
-        if (updated) {
-            lastReport = packet.getTimestamp();
+        if (updated != 0) {
+            lastReport = timestamp;
             AisPacketTags tags = packet.getTags();
             sourceType = (tags.getSourceType() == null) ? SourceType.TERRESTRIAL : tags.getSourceType();
             if (changed != State.NEW) {
                 changed = State.UPDATED;
             }
+            updated |= VesselTargetCodec.LAST_REPORT | VesselTargetCodec.SOURCE_TYPE | VesselTargetCodec.CHANGED;
         }
 
+        return updated;
     }
 
     /**
      * Update the positional fields from the AIS message
      * @param posMessage the AIS message
      * @param date the date of the message
-     * @return if any fields were updated
+     * @return the mask of the updated fields
      */
-    private boolean updateVesselPositionMessage(IVesselPositionMessage posMessage, Date date) {
+    private int updateVesselPositionMessage(IVesselPositionMessage posMessage, Date date) {
 
         // Check that this is a newer position update
         if (lastPosReport != null && lastPosReport.getTime() >= date.getTime()) {
-            return false;
+            return 0;
         }
 
-        boolean updated = false;
+        int updated = 0;
 
         // Update sog
-        Float sog = posMessage.getSog() / 10.0f;
-        if (posMessage.isSogValid() && !compare(sog, this.sog)) {
+        float sog = posMessage.getSog() / 10.0f;
+        if (posMessage.isSogValid() && !compare(sog, this.sog, VesselTargetCodec.SOG)) {
             this.sog = sog;
+            kinematics |= VesselTargetCodec.SOG;
             updateMaxSpeedToday((short)Math.round(sog));
-            updated = true;
+            updated |= VesselTargetCodec.SOG | VesselTargetCodec.MAX_SPEED;
         }
 
         // Update cog
-        Float cog = posMessage.getCog() / 10.0f;
-        if (posMessage.isCogValid() && !compare(cog, this.cog)) {
+        float cog = posMessage.getCog() / 10.0f;
+        if (posMessage.isCogValid() && !compare(cog, this.cog, VesselTargetCodec.COG)) {
             this.cog = cog;
-            updated = true;
+            kinematics |= VesselTargetCodec.COG;
+            updated |= VesselTargetCodec.COG;
         }
 
         // Update heading
-        Short heading = (short)posMessage.getTrueHeading();
-        if (posMessage.isHeadingValid() && !compare(heading, this.heading)) {
+        short heading = (short)posMessage.getTrueHeading();
+        if (posMessage.isHeadingValid() && !compare(heading, this.heading, VesselTargetCodec.HEADING)) {
             this.heading = heading;
-            updated = true;
+            kinematics |= VesselTargetCodec.HEADING;
+            updated |= VesselTargetCodec.HEADING;
         }
 
         if (posMessage.isPositionValid()) {
-            Position pos = posMessage.getPos().getGeoLocation();
+            // Read the raw coordinates rather than creating a Position
+            AisPosition pos = posMessage.getPos();
+            double lat = pos.getLatitudeDouble();
+            double lon = pos.getLongitudeDouble();
 
             // Update latitude
-            if (!compare(pos.getLatitude(), this.lat)) {
-                this.lat = (float)pos.getLatitude();
-                updated = true;
+            if (!compare(lat, this.lat, VesselTargetCodec.LAT)) {
+                this.lat = (float)lat;
+                kinematics |= VesselTargetCodec.LAT;
+                updated |= VesselTargetCodec.LAT;
             }
 
             // Update longitude
-            if (!compare(pos.getLongitude(), this.lon)) {
-                this.lon = (float)pos.getLongitude();
-                updated = true;
+            if (!compare(lon, this.lon, VesselTargetCodec.LON)) {
+                this.lon = (float)lon;
+                kinematics |= VesselTargetCodec.LON;
+                updated |= VesselTargetCodec.LON;
             }
         }
 
@@ -243,28 +336,30 @@ public class VesselTarget implements Serializable {
             AisPositionMessage classAposMessage = (AisPositionMessage) posMessage;
 
             // Update rot
-            Short rot = (short)classAposMessage.getRot();
-            if (classAposMessage.isRotValid() && !compare(rot, this.rot)) {
+            short rot = (short)classAposMessage.getRot();
+            if (classAposMessage.isRotValid() && !compare(rot, this.rot, VesselTargetCodec.ROT)) {
                 this.rot = rot;
-                updated = true;
+                kinematics |= VesselTargetCodec.ROT;
+                updated |= VesselTargetCodec.ROT;
             }
 
             // Update nav status
             NavigationalStatus navStatus = NavigationalStatus.get(classAposMessage.getNavStatus());
             if (navStatus != this.navStatus) {
                 this.navStatus = navStatus;
-                updated = true;
+                updated |= VesselTargetCodec.NAV_STATUS;
             }
         }
 
         // Only update lasPosReport if any positional field has been updated
-        if (updated) {
+        if (updated != 0) {
             lastPosReport = date;
+            updated |= VesselTargetCodec.LAST_POS_REPORT;
         }
 
         // Check if we need to update past track
-        if (updated && checkValidPos()) {
-            updatePastTrack();
+        if (updated != 0 && checkValidPos() && updatePastTrack()) {
+            updated |= VesselTargetCodec.NEW_PAST_TRACK_POS;
         }
 
         return updated;
@@ -274,36 +369,36 @@ public class VesselTarget implements Serializable {
      * Update the static information fields from the AIS message
      * @param message the AIS message
      * @param date the date of the message
-     * @return if any fields were updated
+     * @return the mask of the updated fields
      */
-    private boolean updateVesselStaticMessage(AisStaticCommon message, Date date) {
+    private int updateVesselStaticMessage(AisStaticCommon message, Date date) {
 
         // Check that this is a newer static update
         if (lastStaticReport != null && lastStaticReport.getTime() >= date.getTime()) {
-            return false;
+            return 0;
         }
 
-        boolean updated = false;
+        int updated = 0;
 
         // Update the name
         String name = AisMessage.trimText(message.getName());
         if (StringUtils.isNotBlank(name) && !name.equals(this.name)) {
             this.name = name;
-            updated = true;
+            updated |= VesselTargetCodec.NAME;
         }
 
         // Update the call-sign
         String callsign = AisMessage.trimText(message.getCallsign());
         if (StringUtils.isNotBlank(callsign) && !callsign.equals(this.callsign)) {
             this.callsign = callsign;
-            updated = true;
+            updated |= VesselTargetCodec.CALLSIGN;
         }
 
         // Update the vessel type
         Integer vesselType = message.getShipType();
         if (!vesselType.equals(this.vesselType)) {
             this.vesselType = vesselType;
-            updated = true;
+            updated |= VesselTargetCodec.VESSEL_TYPE;
         }
 
         if (message instanceof AisMessage5) {
@@ -314,48 +409,49 @@ public class VesselTarget implements Serializable {
             Short length = (short)(dim.getDimBow() + dim.getDimStern());
             if (!length.equals(this.length)) {
                 this.length = length;
-                updated = true;
+                updated |= VesselTargetCodec.LENGTH;
             }
 
             // Update width
             Short width = (short)(dim.getDimPort() + dim.getDimStarboard());
             if (!width.equals(this.width)) {
                 this.width = width;
-                updated = true;
+                updated |= VesselTargetCodec.WIDTH;
             }
 
             // Update destination
             String destination = StringUtils.defaultIfBlank(AisMessage.trimText(msg5.getDest()), null);
             if (destination != null && !destination.equals(this.destination)) {
                 this.destination = destination;
-                updated = true;
+                updated |= VesselTargetCodec.DESTINATION;
             }
 
             // Update draught
-            Float draught = msg5.getDraught() / 10.0f;
+            float draught = msg5.getDraught() / 10.0f;
             if (msg5.getDraught() > 0 && !compare(draught, this.draught)) {
                 this.draught = draught;
-                updated = true;
+                updated |= VesselTargetCodec.DRAUGHT;
             }
 
             // Update ETA
             Date eta = msg5.getEtaDate();
             if (eta != null && !eta.equals(this.eta)) {
                 this.eta = eta;
-                updated = true;
+                updated |= VesselTargetCodec.ETA;
             }
 
             // Update IMO
             Long imo = msg5.getImo();
             if (msg5.getImo() > 0 && !imo.equals(this.imoNo)) {
                 this.imoNo = imo;
-                updated = true;
+                updated |= VesselTargetCodec.IMO_NO;
             }
         }
 
         // Only update lastStaticReport if any static field has been updated
-        if (updated) {
+        if (updated != 0) {
             lastStaticReport = date;
+            updated |= VesselTargetCodec.LAST_STATIC_REPORT;
         }
 
         return updated;
@@ -389,26 +485,162 @@ public class VesselTarget implements Serializable {
      * @return the distance between the current vessel position and the given past track position
      */
     public double computePastTrackDist(PastTrackPos pos) {
-        return Position.create(lat, lon).rhumbLineDistanceTo(Position.create(pos.getLat(), pos.getLon()));
+        return GeoUtils.distance(lat, lon, pos.getLat(), pos.getLon());
     }
 
     /**
-     * Utility method that compares two numbers
-     * @param f1 the first number
-     * @param f2 the first number
+     * Utility method that compares a new value with the current value of a kinematic field
+     * @param value the new value
+     * @param current the current value
+     * @param field the {@linkplain VesselTargetCodec} bit of the field
+     * @return if the field is defined and the numbers are (almost) identical
+     */
+    private boolean compare(double value, double current, int field) {
+        return (kinematics & field) != 0 && Math.abs(value - current) < 0.001;
+    }
+
+    /**
+     * Utility method that compares a new value with the current value of a boxed field
+     * @param value the new value
+     * @param current the current value, which may be null
      * @return if the numbers are (almost) identical
      */
-    private boolean compare(Number f1, Number f2) {
-        if (f1 == null && f2 == null) {
-            return true;
-        } else if (f1 == null || f2 == null) {
-            return false;
-        }
-        return Math.abs(f1.doubleValue() - f2.doubleValue()) < 0.001;
+    private static boolean compare(double value, Number current) {
+        return current != null && Math.abs(value - current.doubleValue()) < 0.001;
+    }
+
+    /**
+     * Returns if the given kinematic field is defined
+     * @param field the {@linkplain VesselTargetCodec} bit of the field, i.e. LAT, LON, COG, SOG, HEADING or ROT
+     * @return if the field is defined
+     */
+    public boolean isDefined(int field) {
+        return (kinematics & field) == field;
+    }
+
+    /**
+     * Sets or clears the presence bit of the given kinematic field
+     * @param field the {@linkplain VesselTargetCodec} bit of the field
+     * @param defined if the field is defined
+     */
+    void define(int field, boolean defined) {
+        kinematics = defined ? kinematics | field : kinematics & ~field;
     }
 
+    /**
+     * Returns the two-letter country code for the given MMSI
+     * @param mmsi the MMSI
+     * @return the two-letter country code for the given MMSI or null if not defined
+     */
+    public static String getCountryCode(int mmsi) {
+        int mid = mmsi / 1000000;
+        return (mid >= 100 && mid < MID_COUNTRIES.length) ? MID_COUNTRIES[mid] : null;
+    }
+
+    /**
+     * Flags the changed state of the entity.
+     * Flagging the entity as unchanged also clears the queued flag
+     * @param changed the changed state of the entity
+     */
     public synchronized void flagChanged(State changed) {
         this.changed = changed;
+        if (changed == State.NONE) {
+            queued = false;
+        }
+    }
+
+    /**
+     * Flags that the target has been queued for persistence.
+     * Used for ensuring that a changed target is only queued once until it has been persisted
+     * @return true if the target was not already queued, and false otherwise
+     */
+    public synchronized boolean flagQueued() {
+        if (queued) {
+            return false;
+        }
+        queued = true;
+        return true;
+    }
+
+    /**
+     * Copies the persisted fields of the given target into this target.
+     * The changed state and the new past track position of this target are kept.
+     * @param t the target to copy
+     */
+    public synchronized void copyFrom(VesselTarget t) {
+        if (t.mmsi != mmsi) {
+            throw new IllegalArgumentException("Cannot copy MMSI " + t.mmsi);
+        }
+        targetType = t.targetType;
+        sourceType = t.sourceType;
+        country = t.country;
+        lastReport = t.lastReport;
+        modified = t.modified;
+        lastPosReport = t.lastPosReport;
+        lat = t.lat;
+        lon = t.lon;
+        cog = t.cog;
+        sog = t.sog;
+        heading = t.heading;
+        rot = t.rot;
+        kinematics = t.kinematics;
+        navStatus = t.navStatus;
+        lastStaticReport = t.lastStaticReport;
+        length = t.length;
+        width = t.width;
+        name = t.name;
+        callsign = t.callsign;
+        imoNo = t.imoNo;
+        destination = t.destination;
+        draught = t.draught;
+        eta = t.eta;
+        vesselType = t.vesselType;
+        maxSpeed = t.maxSpeed != null ? t.maxSpeed.clone() : null;
+        lastPastTrackPos = t.lastPastTrackPos;
+        if (lastPastTrackPos != null) {
+            lastPastTrackPos.setVesselTarget(this);
+        }
+    }
+
+    /**
+     * Copies the persisted fields of the given target that are not defined in this target.
+     * @param t the target to copy
+     */
+    public synchronized void fillFrom(VesselTarget t) {
+        if (t.mmsi != mmsi) {
+            throw new IllegalArgumentException("Cannot copy MMSI " + t.mmsi);
+        }
+        targetType = targetType != null ? targetType : t.targetType;
+        sourceType = sourceType != null ? sourceType : t.sourceType;
+        country = country != null ? country : t.country;
+        lastReport = lastReport != null ? lastReport : t.lastReport;
+        lastPosReport = lastPosReport != null ? lastPosReport : t.lastPosReport;
+        int missing = t.kinematics & ~kinematics;
+        lat = (missing & VesselTargetCodec.LAT) != 0 ? t.lat : lat;
+        lon = (missing & VesselTargetCodec.LON) != 0 ? t.lon : lon;
+        cog = (missing & VesselTargetCodec.COG) != 0 ? t.cog : cog;
+        sog = (missing & VesselTargetCodec.SOG) != 0 ? t.sog : sog;
+        heading = (missing & VesselTargetCodec.HEADING) != 0 ? t.heading : heading;
+        rot = (missing & VesselTargetCodec.ROT) != 0 ? t.rot : rot;
+        kinematics |= missing;
+        navStatus = navStatus != null ? navStatus : t.navStatus;
+        lastStaticReport = lastStaticReport != null ? lastStaticReport : t.lastStaticReport;
+        length = length != null ? length : t.length;
+        width = width != null ? width : t.width;
+        name = name != null ? name : t.name;
+        callsign = callsign != null ? callsign : t.callsign;
+        imoNo = imoNo != null ? imoNo : t.imoNo;
+        destination = destination != null ? destination : t.destination;
+        draught = draught != null ? draught : t.draught;
+        eta = eta != null ? eta : t.eta;
+        vesselType = vesselType != null ? vesselType : t.vesselType;
+        if (maxSpeed == null && t.maxSpeed != null) {
+            maxSpeed = t.maxSpeed.clone();
+        }
+        if (lastPastTrackPos == null && t.lastPastTrackPos != null) {
+            lastPastTrackPos = t.lastPastTrackPos;
+            lastPastTrackPos.setVesselTarget(this);
+        }
     }
 
     /**
@@ -432,7 +664,7 @@ public class VesselTarget implements Serializable {
      * @return if the target defines a valid position
      */
     public boolean checkValidPos() {
-        return lat != null && lon != null && cog != null && sog != null && lastPosReport != null;
+        return isDefined(VALID_POS_FIELDS) && lastPosReport != null;
     }
 
     // ****** Max Speed functions ******* //
@@ -478,7 +710,7 @@ public class VesselTarget implements Serializable {
      * @param speed the speed to write
      */
     public void updateMaxSpeedToday(short speed) {
-        long day = LocalDate.now().toEpochDay();
+        long day = today();
         short oldSpeed = readMaxSpeed(day);
         if (speed > oldSpeed) {
             writeMaxSpeed(day, speed);
@@ -486,6 +718,23 @@ public class VesselTarget implements Serializable {
         writeMaxSpeed(day + 1, (short)0);
     }
 
+    /**
+     * Returns the current epoch day in the default time zone.
+     * Only computed once a day, rather than creating a LocalDate for every speed update.
+     * @return the current epoch day
+     */
+    private static long today() {
+        long[] day = currentDay;
+        long now = System.currentTimeMillis();
+        if (now >= day[1]) {
+            LocalDate date = LocalDate.now();
+            long end = date.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            day = new long[] { date.toEpochDay(), end };
+            currentDay = day;
+        }
+        return day[0];
+    }
+
     /**
      * Computes the max speed over the recorded period
      * @return the max speed over the recorded period
@@ -508,8 +757,8 @@ public class VesselTarget implements Serializable {
                 "changed=" + changed +
                 ", mmsi=" + mmsi +
                 ", lastReport=" + lastReport +
-                ", lat=" + lat +
-                ", lon=" + lon +
+                ", lat=" + getLat() +
+                ", lon=" + getLon() +
                 ", lastPastTrackPos=" + lastPastTrackPos +
                 ", newPastTrackPos=" + newPastTrackPos +
                 '}';
@@ -537,32 +786,92 @@ public class VesselTarget implements Serializable {
         return lastReport;
     }
 
+    public Date getModified() {
+        return modified;
+    }
+
     public Date getLastPosReport() {
         return lastPosReport;
     }
 
+    @Access(AccessType.PROPERTY)
     public Float getLat() {
-        return lat;
+        return isDefined(VesselTargetCodec.LAT) ? lat : null;
     }
 
+    protected void setLat(Float lat) {
+        define(VesselTargetCodec.LAT, lat != null);
+        this.lat = lat != null ? lat : 0f;
+    }
+
+    @Access(AccessType.PROPERTY)
     public Float getLon() {
-        return lon;
+        return isDefined(VesselTargetCodec.LON) ? lon : null;
     }
 
+    protected void setLon(Float lon) {
+        define(VesselTargetCodec.LON, lon != null);
+        this.lon = lon != null ? lon : 0f;
+    }
+
+    @Access(AccessType.PROPERTY)
     public Float getCog() {
-        return cog;
+        return isDefined(VesselTargetCodec.COG) ? cog : null;
     }
 
+    protected void setCog(Float cog) {
+        define(VesselTargetCodec.COG, cog != null);
+        this.cog = cog != null ? cog : 0f;
+    }
+
+    @Access(AccessType.PROPERTY)
     public Float getSog() {
-        return sog;
+        return isDefined(VesselTargetCodec.SOG) ? sog : null;
     }
 
+    protected void setSog(Float sog) {
+        define(VesselTargetCodec.SOG, sog != null);
+        this.sog = sog != null ? sog : 0f;
+    }
+
+    @Access(AccessType.PROPERTY)
     public Short getHeading() {
-        return heading;
+        return isDefined(VesselTargetCodec.HEADING) ? heading : null;
     }
 
+    protected void setHeading(Short heading) {
+        define(VesselTargetCodec.HEADING, heading != null);
+        this.heading = heading != null ? heading : 0;
+    }
+
+    @Access(AccessType.PROPERTY)
     public Short getRot() {
-        return rot;
+        return isDefined(VesselTargetCodec.ROT) ? rot : null;
+    }
+
+    protected void setRot(Short rot) {
+        define(VesselTargetCodec.ROT, rot != null);
+        this.rot = rot != null ? rot : 0;
+    }
+
+    /** Returns the latitude without boxing it. Only valid if {@code isDefined(LAT)} */
+    public float getLatValue() {
+        return lat;
+    }
+
+    /** Returns the longitude without boxing it. Only valid if {@code isDefined(LON)} */
+    public float getLonValue() {
+        return lon;
+    }
+
+    /** Returns the course over ground without boxing it. Only valid if {@code isDefined(COG)} */
+    public float getCogValue() {
+        return cog;
+    }
+
+    /** Returns the speed over ground without boxing it. Only valid if {@code isDefined(SOG)} */
+    public float getSogValue() {
+        return sog;
     }
 
     public NavigationalStatus getNavStatus() {
@@ -617,6 +926,74 @@ public class VesselTarget implements Serializable {
         return lastPastTrackPos;
     }
 
+    @Access(AccessType.PROPERTY)
+    protected Float getPastTrackLat() {
+        return lastPastTrackPos != null ? lastPastTrackPos.getLat() : null;
+    }
+
+    protected void setPastTrackLat(Float lat) {
+        if (lat != null) {
+            loadedPastTrackPos().setLat(lat);
+        }
+    }
+
+    @Access(AccessType.PROPERTY)
+    protected Float getPastTrackLon() {
+        return lastPastTrackPos != null ? lastPastTrackPos.getLon() : null;
+    }
+
+    protected void setPastTrackLon(Float lon) {
+        if (lon != null) {
+            loadedPastTrackPos().setLon(lon);
+        }
+    }
+
+    @Access(AccessType.PROPERTY)
+    protected Float getPastTrackCog() {
+        return lastPastTrackPos != null ? lastPastTrackPos.getCog() : null;
+    }
+
+    protected void setPastTrackCog(Float cog) {
+        if (cog != null) {
+            loadedPastTrackPos().setCog(cog);
+        }
+    }
+
+    @Access(AccessType.PROPERTY)
+    protected Float getPastTrackSog() {
+        return lastPastTrackPos != null ? lastPastTrackPos.getSog() : null;
+    }
+
+    protected void setPastTrackSog(Float sog) {
+        if (sog != null) {
+            loadedPastTrackPos().setSog(sog);
+        }
+    }
+
+    @Access(AccessType.PROPERTY)
+    @Temporal(TemporalType.TIMESTAMP)
+    protected Date getPastTrackTime() {
+        return lastPastTrackPos != null ? lastPastTrackPos.getTime() : null;
+    }
+
+    protected void setPastTrackTime(Date time) {
+        if (time != null) {
+            loadedPastTrackPos().setTime(time);
+        }
+    }
+
+    /**
+     * Returns the last past track position, creating it as the columns are loaded
+     * @return the last past track position
+     */
+    private PastTrackPos loadedPastTrackPos() {
+        if (lastPastTrackPos == null) {
+            lastPastTrackPos = new PastTrackPos();
+            lastPastTrackPos.setVesselTarget(this);
+        }
+        return lastPastTrackPos;
+    }
+
     public void setLastPastTrackPos(PastTrackPos lastPastTrackPos) {
         this.lastPastTrackPos = lastPastTrackPos;
     }
@@ -628,4 +1005,49 @@ public class VesselTarget implements Serializable {
     public void setNewPastTrackPos(PastTrackPos newPastTrackPos) {
         this.newPastTrackPos = newPastTrackPos;
     }
+
+    public PastTrack getPastTrack() {
+        return pastTrack;
+    }
+
+    public void setPastTrack(PastTrack pastTrack) {
+        this.pastTrack = pastTrack;
+    }
+
+    public List<PastTrackSegment> getPastTrackSegments() {
+        return pastTrackSegments;
+    }
+
+    public void setPastTrackSegments(List<PastTrackSegment> pastTrackSegments) {
+        this.pastTrackSegments = pastTrackSegments;
+    }
+
+    public int getGridCell() {
+        return gridCell;
+    }
+
+    public void setGridCell(int gridCell) {
+        this.gridCell = gridCell;
+    }
+
+    public float getClusterLat() {
+        return clusterLat;
+    }
+
+    public float getClusterLon() {
+        return clusterLon;
+    }
+
+    public void setClusterPos(float clusterLat, float clusterLon) {
+        this.clusterLat = clusterLat;
+        this.clusterLon = clusterLon;
+    }
+
+    public int getAttributeSlot() {
+        return attributeSlot;
+    }
+
+    public void setAttributeSlot(int attributeSlot) {
+        this.attributeSlot = attributeSlot;
+    }
 }
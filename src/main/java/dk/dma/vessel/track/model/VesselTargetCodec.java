@@ -0,0 +1,257 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.message.NavigationalStatus;
+import dk.dma.ais.packet.AisPacketTags.SourceType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Compact binary encoding of vessel targets.
+ * <p>
+ * A record consists of the MMSI, a mask of the encoded fields, a mask of the encoded fields
+ * that are null, followed by the non-null field values in bit order. Encoding a subset
+ * of the fields produces a delta record, which only touches those fields when decoded.
+ * <p>
+ * The caller must synchronize on the target whilst encoding or decoding.
+ */
+public class VesselTargetCodec {
+
+    public static final int TARGET_TYPE         = 1;
+    public static final int SOURCE_TYPE         = 1 << 1;
+    public static final int COUNTRY             = 1 << 2;
+    public static final int LAST_REPORT         = 1 << 3;
+    public static final int LAST_POS_REPORT     = 1 << 4;
+    public static final int LAT                 = 1 << 5;
+    public static final int LON                 = 1 << 6;
+    public static final int COG                 = 1 << 7;
+    public static final int SOG                 = 1 << 8;
+    public static final int HEADING             = 1 << 9;
+    public static final int ROT                 = 1 << 10;
+    public static final int NAV_STATUS          = 1 << 11;
+    public static final int LAST_STATIC_REPORT  = 1 << 12;
+    public static final int LENGTH              = 1 << 13;
+    public static final int WIDTH               = 1 << 14;
+    public static final int NAME                = 1 << 15;
+    public static final int CALLSIGN            = 1 << 16;
+    public static final int IMO_NO              = 1 << 17;
+    public static final int DESTINATION         = 1 << 18;
+    public static final int DRAUGHT             = 1 << 19;
+    public static final int ETA                 = 1 << 20;
+    public static final int VESSEL_TYPE         = 1 << 21;
+    public static final int MAX_SPEED           = 1 << 22;
+    public static final int LAST_PAST_TRACK_POS = 1 << 23;
+    public static final int NEW_PAST_TRACK_POS  = 1 << 24;
+    public static final int CHANGED             = 1 << 25;
+
+    /** All fields of a vessel target */
+    public static final int ALL = (1 << 26) - 1;
+
+    /** Strings are truncated to this length */
+    static final int MAX_STRING_LENGTH = 255;
+
+    /** An upper bound of the size of an encoded record */
+    public static final int MAX_RECORD_SIZE = 4096;
+
+    private VesselTargetCodec() {
+    }
+
+    /**
+     * Encodes the given fields of the target
+     * @param buf the buffer to encode the record into. Must have at least {@linkplain #MAX_RECORD_SIZE} bytes remaining
+     * @param t the target
+     * @param mask the fields to encode
+     */
+    public static void encode(ByteBuffer buf, VesselTarget t, int mask) {
+        mask &= ALL;
+        int nulls = nullMask(t) & mask;
+        buf.putInt(t.mmsi);
+        buf.putInt(mask);
+        buf.putInt(nulls);
+
+        int values = mask & ~nulls;
+        if ((values & TARGET_TYPE) != 0)          buf.put((byte) t.targetType.ordinal());
+        if ((values & SOURCE_TYPE) != 0)          buf.put((byte) t.sourceType.ordinal());
+        if ((values & COUNTRY) != 0)              putString(buf, t.country);
+        if ((values & LAST_REPORT) != 0)          buf.putLong(t.lastReport.getTime());
+        if ((values & LAST_POS_REPORT) != 0)      buf.putLong(t.lastPosReport.getTime());
+        if ((values & LAT) != 0)                  buf.putFloat(t.lat);
+        if ((values & LON) != 0)                  buf.putFloat(t.lon);
+        if ((values & COG) != 0)                  buf.putFloat(t.cog);
+        if ((values & SOG) != 0)                  buf.putFloat(t.sog);
+        if ((values & HEADING) != 0)              buf.putShort(t.heading);
+        if ((values & ROT) != 0)                  buf.putShort(t.rot);
+        if ((values & NAV_STATUS) != 0)           buf.put((byte) t.navStatus.ordinal());
+        if ((values & LAST_STATIC_REPORT) != 0)   buf.putLong(t.lastStaticReport.getTime());
+        if ((values & LENGTH) != 0)               buf.putShort(t.length);
+        if ((values & WIDTH) != 0)                buf.putShort(t.width);
+        if ((values & NAME) != 0)                 putString(buf, t.name);
+        if ((values & CALLSIGN) != 0)             putString(buf, t.callsign);
+        if ((values & IMO_NO) != 0)               buf.putLong(t.imoNo);
+        if ((values & DESTINATION) != 0)          putString(buf, t.destination);
+        if ((values & DRAUGHT) != 0)              buf.putFloat(t.draught);
+        if ((values & ETA) != 0)                  buf.putLong(t.eta.getTime());
+        if ((values & VESSEL_TYPE) != 0)          buf.putInt(t.vesselType);
+        if ((values & MAX_SPEED) != 0)            putBytes(buf, t.maxSpeed);
+        if ((values & LAST_PAST_TRACK_POS) != 0)  putPastTrackPos(buf, t.lastPastTrackPos);
+        if ((values & NEW_PAST_TRACK_POS) != 0)   putPastTrackPos(buf, t.newPastTrackPos);
+        if ((values & CHANGED) != 0)              buf.put((byte) t.changed.ordinal());
+    }
+
+    /**
+     * Returns the MMSI of the record at the current position of the buffer without consuming it
+     * @param buf the buffer
+     * @return the MMSI of the next record
+     */
+    public static int peekMmsi(ByteBuffer buf) {
+        return buf.getInt(buf.position());
+    }
+
+    /**
+     * Decodes a record into a new vessel target
+     * @param buf the buffer
+     * @return the decoded vessel target
+     */
+    public static VesselTarget decode(ByteBuffer buf) {
+        VesselTarget t = new VesselTarget(peekMmsi(buf));
+        t.changed = VesselTarget.State.NONE;
+        decode(buf, t);
+        return t;
+    }
+
+    /**
+     * Decodes a record into the given vessel target. Only the fields of the record are updated
+     * @param buf the buffer
+     * @param t the target to update
+     * @return the mask of the decoded fields
+     */
+    public static int decode(ByteBuffer buf, VesselTarget t) {
+        int mmsi = buf.getInt();
+        if (mmsi != t.mmsi) {
+            throw new IllegalArgumentException("Cannot decode MMSI " + mmsi + " into " + t.mmsi);
+        }
+        int mask = buf.getInt();
+        int nulls = buf.getInt();
+
+        if ((mask & TARGET_TYPE) != 0)         t.targetType = (nulls & TARGET_TYPE) != 0 ? null : AisTargetType.values()[buf.get()];
+        if ((mask & SOURCE_TYPE) != 0)         t.sourceType = (nulls & SOURCE_TYPE) != 0 ? null : SourceType.values()[buf.get()];
+        if ((mask & COUNTRY) != 0)             t.country = (nulls & COUNTRY) != 0 ? null : getString(buf);
+        if ((mask & LAST_REPORT) != 0)         t.lastReport = (nulls & LAST_REPORT) != 0 ? null : new Date(buf.getLong());
+        if ((mask & LAST_POS_REPORT) != 0)     t.lastPosReport = (nulls & LAST_POS_REPORT) != 0 ? null : new Date(buf.getLong());
+        if ((mask & LAT) != 0)                 t.define(LAT, (nulls & LAT) == 0);
+        if ((mask & LAT & ~nulls) != 0)        t.lat = buf.getFloat();
+        if ((mask & LON) != 0)                 t.define(LON, (nulls & LON) == 0);
+        if ((mask & LON & ~nulls) != 0)        t.lon = buf.getFloat();
+        if ((mask & COG) != 0)                 t.define(COG, (nulls & COG) == 0);
+        if ((mask & COG & ~nulls) != 0)        t.cog = buf.getFloat();
+        if ((mask & SOG) != 0)                 t.define(SOG, (nulls & SOG) == 0);
+        if ((mask & SOG & ~nulls) != 0)        t.sog = buf.getFloat();
+        if ((mask & HEADING) != 0)             t.define(HEADING, (nulls & HEADING) == 0);
+        if ((mask & HEADING & ~nulls) != 0)    t.heading = buf.getShort();
+        if ((mask & ROT) != 0)                 t.define(ROT, (nulls & ROT) == 0);
+        if ((mask & ROT & ~nulls) != 0)        t.rot = buf.getShort();
+        if ((mask & NAV_STATUS) != 0)          t.navStatus = (nulls & NAV_STATUS) != 0 ? null : NavigationalStatus.values()[buf.get()];
+        if ((mask & LAST_STATIC_REPORT) != 0)  t.lastStaticReport = (nulls & LAST_STATIC_REPORT) != 0 ? null : new Date(buf.getLong());
+        if ((mask & LENGTH) != 0)              t.length = (nulls & LENGTH) != 0 ? null : buf.getShort();
+        if ((mask & WIDTH) != 0)               t.width = (nulls & WIDTH) != 0 ? null : buf.getShort();
+        if ((mask & NAME) != 0)                t.name = (nulls & NAME) != 0 ? null : getString(buf);
+        if ((mask & CALLSIGN) != 0)            t.callsign = (nulls & CALLSIGN) != 0 ? null : getString(buf);
+        if ((mask & IMO_NO) != 0)              t.imoNo = (nulls & IMO_NO) != 0 ? null : buf.getLong();
+        if ((mask & DESTINATION) != 0)         t.destination = (nulls & DESTINATION) != 0 ? null : getString(buf);
+        if ((mask & DRAUGHT) != 0)             t.draught = (nulls & DRAUGHT) != 0 ? null : buf.getFloat();
+        if ((mask & ETA) != 0)                 t.eta = (nulls & ETA) != 0 ? null : new Date(buf.getLong());
+        if ((mask & VESSEL_TYPE) != 0)         t.vesselType = (nulls & VESSEL_TYPE) != 0 ? null : buf.getInt();
+        if ((mask & MAX_SPEED) != 0)           t.maxSpeed = (nulls & MAX_SPEED) != 0 ? null : getBytes(buf);
+        if ((mask & LAST_PAST_TRACK_POS) != 0) t.lastPastTrackPos = (nulls & LAST_PAST_TRACK_POS) != 0 ? null : getPastTrackPos(buf, t);
+        if ((mask & NEW_PAST_TRACK_POS) != 0)  t.newPastTrackPos = (nulls & NEW_PAST_TRACK_POS) != 0 ? null : getPastTrackPos(buf, null);
+        if ((mask & CHANGED) != 0) {
+            t.changed = VesselTarget.State.values()[buf.get()];
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the mask of the fields of the target that are null
+     * @param t the target
+     * @return the mask of the fields of the target that are null
+     */
+    private static int nullMask(VesselTarget t) {
+        int nulls = 0;
+        if (t.targetType == null)       nulls |= TARGET_TYPE;
+        if (t.sourceType == null)       nulls |= SOURCE_TYPE;
+        if (t.country == null)          nulls |= COUNTRY;
+        if (t.lastReport == null)       nulls |= LAST_REPORT;
+        if (t.lastPosReport == null)    nulls |= LAST_POS_REPORT;
+        nulls |= (LAT | LON | COG | SOG | HEADING | ROT) & ~t.kinematics;
+        if (t.navStatus == null)        nulls |= NAV_STATUS;
+        if (t.lastStaticReport == null) nulls |= LAST_STATIC_REPORT;
+        if (t.length == null)           nulls |= LENGTH;
+        if (t.width == null)            nulls |= WIDTH;
+        if (t.name == null)             nulls |= NAME;
+        if (t.callsign == null)         nulls |= CALLSIGN;
+        if (t.imoNo == null)            nulls |= IMO_NO;
+        if (t.destination == null)      nulls |= DESTINATION;
+        if (t.draught == null)          nulls |= DRAUGHT;
+        if (t.eta == null)              nulls |= ETA;
+        if (t.vesselType == null)       nulls |= VESSEL_TYPE;
+        if (t.maxSpeed == null)         nulls |= MAX_SPEED;
+        if (t.lastPastTrackPos == null) nulls |= LAST_PAST_TRACK_POS;
+        if (t.newPastTrackPos == null)  nulls |= NEW_PAST_TRACK_POS;
+        return nulls;
+    }
+
+    private static void putString(ByteBuffer buf, String value) {
+        if (value.length() > MAX_STRING_LENGTH) {
+            value = value.substring(0, MAX_STRING_LENGTH);
+        }
+        putBytes(buf, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String getString(ByteBuffer buf) {
+        return new String(getBytes(buf), StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] value) {
+        buf.putShort((short) value.length);
+        buf.put(value);
+    }
+
+    private static byte[] getBytes(ByteBuffer buf) {
+        byte[] value = new byte[buf.getShort() & 0xffff];
+        buf.get(value);
+        return value;
+    }
+
+    private static void putPastTrackPos(ByteBuffer buf, PastTrackPos pos) {
+        buf.putLong(pos.id != null ? pos.id : -1L);
+        buf.putFloat(pos.lat);
+        buf.putFloat(pos.lon);
+        buf.putFloat(pos.cog);
+        buf.putFloat(pos.sog);
+        buf.putLong(pos.time.getTime());
+    }
+
+    private static PastTrackPos getPastTrackPos(ByteBuffer buf, VesselTarget target) {
+        long id = buf.getLong();
+        PastTrackPos pos = new PastTrackPos(buf.getFloat(), buf.getFloat(), buf.getFloat(), buf.getFloat(), new Date(buf.getLong()));
+        pos.id = id >= 0 ? id : null;
+        pos.vesselTarget = target;
+        return pos;
+    }
+}
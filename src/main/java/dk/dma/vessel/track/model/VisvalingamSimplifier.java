@@ -0,0 +1,170 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+import java.util.Arrays;
+
+/**
+ * Simplifies a past track using the Visvalingam-Whyatt algorithm.
+ * <p>
+ * The position forming the smallest triangle with its neighbours is removed repeatedly, until
+ * all remaining triangles are at least the area of a right-angled triangle with legs of the tolerance.
+ * The triangles are kept in a binary min-heap of position indexes, and the neighbours of a
+ * removed position are linked through index arrays.
+ */
+public class VisvalingamSimplifier implements TrackSimplifier {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void simplify(TrackBuffer track, double tolerance) {
+        int n = track.size();
+        if (n < 3) {
+            return;
+        }
+
+        double minArea = tolerance * tolerance / 2;
+        int[] prev = new int[n];
+        int[] next = new int[n];
+        for (int i = 0; i < n; i++) {
+            prev[i] = i - 1;
+            next[i] = i + 1;
+        }
+
+        AreaHeap heap = new AreaHeap(n);
+        for (int i = 1; i < n - 1; i++) {
+            heap.area[i] = area(track, i - 1, i, i + 1);
+            heap.add(i);
+        }
+        heap.heapify();
+
+        boolean[] keep = new boolean[n];
+        Arrays.fill(keep, true);
+        double maxRemoved = 0;
+        while (heap.size > 0) {
+            int i = heap.heap[0];
+            // The effective area of a position is never less than that of a previously removed position
+            double area = Math.max(heap.area[i], maxRemoved);
+            if (area >= minArea) {
+                break;
+            }
+            maxRemoved = area;
+            heap.removeFirst();
+            keep[i] = false;
+
+            int p = prev[i], q = next[i];
+            next[p] = q;
+            prev[q] = p;
+            if (p > 0) {
+                heap.update(p, area(track, prev[p], p, q));
+            }
+            if (q < n - 1) {
+                heap.update(q, area(track, p, q, next[q]));
+            }
+        }
+        track.retain(keep);
+    }
+
+    private static double area(TrackBuffer track, int i1, int i2, int i3) {
+        return GeoUtils.triangleArea(
+                track.getLat(i1), track.getLon(i1),
+                track.getLat(i2), track.getLon(i2),
+                track.getLat(i3), track.getLon(i3));
+    }
+
+    /**
+     * A binary min-heap of position indexes ordered by the area of their triangles
+     */
+    private static class AreaHeap {
+        final double[] area;
+        final int[] heap;
+        final int[] pos;
+        int size;
+
+        AreaHeap(int n) {
+            area = new double[n];
+            heap = new int[n];
+            pos = new int[n];
+        }
+
+        void add(int i) {
+            pos[i] = size;
+            heap[size++] = i;
+        }
+
+        void heapify() {
+            for (int k = size / 2 - 1; k >= 0; k--) {
+                siftDown(k);
+            }
+        }
+
+        void removeFirst() {
+            int last = heap[--size];
+            if (size > 0) {
+                heap[0] = last;
+                pos[last] = 0;
+                siftDown(0);
+            }
+        }
+
+        void update(int i, double value) {
+            double old = area[i];
+            area[i] = value;
+            if (value < old) {
+                siftUp(pos[i]);
+            } else {
+                siftDown(pos[i]);
+            }
+        }
+
+        private void siftUp(int k) {
+            int i = heap[k];
+            while (k > 0) {
+                int parent = (k - 1) / 2;
+                if (area[heap[parent]] <= area[i]) {
+                    break;
+                }
+                set(k, heap[parent]);
+                k = parent;
+            }
+            set(k, i);
+        }
+
+        private void siftDown(int k) {
+            int i = heap[k];
+            while (true) {
+                int child = 2 * k + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && area[heap[child + 1]] < area[heap[child]]) {
+                    child++;
+                }
+                if (area[heap[child]] >= area[i]) {
+                    break;
+                }
+                set(k, heap[child]);
+                k = child;
+            }
+            set(k, i);
+        }
+
+        private void set(int k, int i) {
+            heap[k] = i;
+            pos[i] = k;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.rest;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import dk.dma.vessel.track.model.TrackBuffer;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Writes past tracks as JSON directly to the servlet response.
+ * <p>
+ * The positions are streamed from the primitive arrays of the track, newest first, in the
+ * same format as a list of {@linkplain PastTrackPosVo}, without creating a value object per position.
+ */
+public class PastTrackJsonWriter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private PastTrackJsonWriter() {
+    }
+
+    /**
+     * Writes the past track to the response
+     * @param track the past track
+     * @param response the servlet response
+     */
+    public static void write(TrackBuffer track, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json;charset=UTF-8");
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(response.getOutputStream(), JsonEncoding.UTF8)) {
+            json.writeStartArray();
+            for (int i = track.size() - 1; i >= 0; i--) {
+                writePos(json, track, i);
+            }
+            json.writeEndArray();
+        }
+    }
+
+    /**
+     * Writes the past tracks to the response, as a JSON object with a field per MMSI
+     * @param tracks the past tracks by MMSI
+     * @param response the servlet response
+     */
+    public static void write(Map<Integer, TrackBuffer> tracks, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json;charset=UTF-8");
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(response.getOutputStream(), JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            for (Map.Entry<Integer, TrackBuffer> e : tracks.entrySet()) {
+                TrackBuffer track = e.getValue();
+                json.writeArrayFieldStart(String.valueOf(e.getKey()));
+                for (int i = track.size() - 1; i >= 0; i--) {
+                    writePos(json, track, i);
+                }
+                json.writeEndArray();
+            }
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * Writes a single past track position as a JSON object
+     * @param json the JSON generator
+     * @param track the past track
+     * @param i the index of the position
+     */
+    static void writePos(JsonGenerator json, TrackBuffer track, int i) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("lat", track.getLat(i));
+        json.writeNumberField("lon", track.getLon(i));
+        json.writeNumberField("cog", track.getCog(i));
+        json.writeNumberField("sog", track.getSog(i));
+        json.writeNumberField("time", track.getTime(i));
+        json.writeEndObject();
+    }
+}
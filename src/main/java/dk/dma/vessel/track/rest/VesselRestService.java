@@ -1,13 +1,24 @@
 package dk.dma.vessel.track.rest;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import dk.dma.ais.message.ShipTypeCargo;
 import dk.dma.ais.message.ShipTypeCargo.ShipType;
-import dk.dma.vessel.track.model.PastTrackPos;
+import dk.dma.enav.model.geometry.Position;
+import dk.dma.vessel.track.model.TrackBuffer;
 import dk.dma.vessel.track.model.VesselTarget;
+import dk.dma.vessel.track.store.AttributeIndex;
+import dk.dma.vessel.track.store.ClusterIndex;
+import dk.dma.vessel.track.store.SearchIndex;
+import dk.dma.vessel.track.store.SpatialIndex;
 import dk.dma.vessel.track.store.TargetStore;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -15,13 +26,20 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.time.Duration;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.function.Predicate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -37,6 +55,46 @@ public class VesselRestService  {
     @Autowired
     TargetStore targetStore;
 
+    @Autowired
+    SpatialIndex spatialIndex;
+
+    @Autowired
+    ClusterIndex clusterIndex;
+
+    @Autowired
+    AttributeIndex attributeIndex;
+
+    @Autowired
+    SearchIndex searchIndex;
+
+    @Value("${maxTrackMmsis:1000}")
+    int maxTrackMmsis;
+
+    @Value("${resultCacheEntries:200000}")
+    long resultCacheEntries;
+
+    @Value("${minEpochDuration:PT2S}")
+    String minEpochDuration;
+
+    @Value("${resultCacheTileSize:0}")
+    double resultCacheTileSize;
+
+    Cache<ResultKey, Object> resultCache;
+
+    /**
+     * Creates the result cache. Results are weighed by their number of vessels and clusters, and
+     * expire with the change epoch they were computed for
+     */
+    @PostConstruct
+    public void init() {
+        resultCache = CacheBuilder.newBuilder()
+                .maximumWeight(resultCacheEntries)
+                .weigher((ResultKey key, Object result) -> 1 + resultEntries(result))
+                .expireAfterWrite(Duration.parse(minEpochDuration).toMillis(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
     /**
      * Returns the number of active vessels
      * @return the number of active vessels
@@ -96,11 +154,10 @@ public class VesselRestService  {
 
         long t0 = System.currentTimeMillis();
 
-        if (maxHits == null) {
-            maxHits = Integer.MAX_VALUE;
-        }
-
-        List<VesselTargetListVo> result = computeVessels(top, left, bottom, right, mmsi, filter, maxHits);
+        int max = (maxHits == null) ? Integer.MAX_VALUE : maxHits;
+        float[] b = cacheBounds(top, left, bottom, right);
+        ResultKey key = new ResultKey("list", targetStore.getEpoch(), b, mmsi, filter, 0, max);
+        List<VesselTargetListVo> result = cached(key, () -> computeVessels(b[0], b[1], b[2], b[3], mmsi, filter, max));
 
         LOG.info(String.format("/list returned %d vessels in %d ms", result.size(), System.currentTimeMillis() - t0));
 
@@ -135,10 +192,10 @@ public class VesselRestService  {
 
         long t0 = System.currentTimeMillis();
 
-        List<VesselTargetListVo> vessels = computeVessels(top, left, bottom, right, mmsi, filter, Integer.MAX_VALUE);
-
-        cellSize = (cellSize == null) ? (float)0.1 : cellSize;
-        VesselClusterResultVo result = VesselClusterResultVo.computeClusterResult(vessels, mmsi, 1, 40, cellSize);
+        float size = (cellSize == null) ? (float)0.1 : cellSize;
+        float[] b = cacheBounds(top, left, bottom, right);
+        ResultKey key = new ResultKey("cluster-list", targetStore.getEpoch(), b, mmsi, filter, size, 0);
+        VesselClusterResultVo result = cached(key, () -> computeClusterResult(b[0], b[1], b[2], b[3], mmsi, filter, size));
 
         LOG.info(String.format("/cluster-list returned %d vessels and %d clusters in %d ms",
                 result.getVessels().size(),
@@ -148,6 +205,146 @@ public class VesselRestService  {
         return result;
     }
 
+    /**
+     * Computes the vessel clusters within the given OpenLayers bounds
+     * @param top the top latitude
+     * @param left the left longitude
+     * @param bottom the bottom latitude
+     * @param right the right longitude
+     * @param mmsi optionally, a list of MMSI to always include
+     * @param filter optionally, the search filter
+     * @param cellSize the size of the cluster cells in degrees
+     * @return the list of cluster entities and un-clustered vessel targets
+     */
+    private VesselClusterResultVo computeClusterResult(
+            Float top, Float left, Float bottom, Float right, Integer[] mmsi, String filter, float cellSize) throws Exception {
+
+        // Unfiltered requests for one of the maintained cell sizes are served from the cluster index
+        int level = clusterIndex.getLevel(cellSize);
+        if (level >= 0 && StringUtils.isBlank(filter)) {
+            return computeIndexedClusterResult(top, left, bottom, right, mmsi, 40, level);
+        }
+        List<VesselTargetListVo> vessels = computeVessels(top, left, bottom, right, mmsi, filter, Integer.MAX_VALUE);
+        return VesselClusterResultVo.computeClusterResult(vessels, mmsi, 1, 40, cellSize);
+    }
+
+    /**
+     * Returns the cached result for the given key, or computes and caches it.
+     * Concurrent requests for the same key share a single computation
+     * @param key the result key
+     * @param loader computes the result
+     * @return the result
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T cached(ResultKey key, Callable<T> loader) throws Exception {
+        try {
+            return (T)resultCache.get(key, loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of vessels and clusters of the given list or cluster result
+     * @param result the result
+     * @return the number of vessels and clusters of the result
+     */
+    private static int resultEntries(Object result) {
+        if (result instanceof VesselClusterResultVo) {
+            VesselClusterResultVo clusterResult = (VesselClusterResultVo)result;
+            return clusterResult.getVessels().size() + clusterResult.getClusters().size();
+        }
+        return result instanceof List ? ((List<?>)result).size() : 0;
+    }
+
+    /**
+     * Normalizes the given OpenLayers bounds for caching. The left longitude is moved into the range
+     * [-180, 180[, and if {@code resultCacheTileSize} is defined, the bounds are expanded to the
+     * enclosing tile boundaries, so that requests for nearby bounds share a result
+     *
+     * @param top the top latitude
+     * @param left the left longitude
+     * @param bottom the bottom latitude
+     * @param right the right longitude
+     * @return the normalized top, left, bottom and right bounds
+     */
+    float[] cacheBounds(float top, float left, float bottom, float right) {
+        float shift = 360f * (float)Math.floor((left + 180f) / 360f);
+        left -= shift;
+        right -= shift;
+        if (resultCacheTileSize > 0) {
+            double t = resultCacheTileSize;
+            top = (float)Math.min(90, Math.ceil(top / t) * t);
+            bottom = (float)Math.max(-90, Math.floor(bottom / t) * t);
+            left = (float)(Math.floor(left / t) * t);
+            right = (float)(Math.ceil(right / t) * t);
+        }
+        return new float[] { top, left, bottom, right };
+    }
+
+    /**
+     * Periodically log the result cache statistics
+     */
+    @Scheduled(cron="40 */5 * * * *")
+    public void logCacheStatistics() {
+        LOG.info("Result cache: " + resultCache.stats());
+    }
+
+    /**
+     * Computes the vessel clusters within the given OpenLayers bounds from the cell counts of the cluster index.
+     * <p>
+     * Only the vessels of cells with at most {@code cellClusterThreshold} vessels are looked up in the
+     * spatial index. The counts of a cell are those of the entire cell, whereas the vessels of a cell
+     * are restricted to the part of the cell within the bounds.
+     *
+     * @param top the top latitude
+     * @param left the left longitude
+     * @param bottom the bottom latitude
+     * @param right the right longitude
+     * @param mmsi optionally, a list of MMSI to always include
+     * @param cellClusterThreshold if the number of vessels in a cluster cell is less than this threshold, no clustering is used for this cell
+     * @param level the cluster index level
+     * @return the list of cluster entities and un-clustered vessel targets
+     */
+    private VesselClusterResultVo computeIndexedClusterResult(
+            Float top, Float left, Float bottom, Float right, Integer[] mmsi, int cellClusterThreshold, int level) {
+
+        VesselClusterResultVo result = new VesselClusterResultVo();
+        Set<VesselTarget> vessels = new LinkedHashSet<>();
+
+        clusterIndex.forEachCell(level, top, left, bottom, right, (lat, lon, size, count, area) -> {
+            if (count <= cellClusterThreshold) {
+                spatialIndex.query(lat + size, lon, lat, lon + size).stream()
+                        .filter(t -> SpatialIndex.contains(t, top, left, bottom, right))
+                        .forEach(vessels::add);
+            } else {
+                VesselClusterVo cluster = new VesselClusterVo(
+                        Position.create(lat, lon),
+                        Position.create(lat + size, lon + size));
+                cluster.setVessels(null);
+                cluster.setCount(count);
+                cluster.setDensity(count / area);
+                result.getClusters().add(cluster);
+            }
+        });
+
+        // Always include the targets with the given MMSI's
+        if (mmsi != null) {
+            Arrays.stream(mmsi)
+                    .map(targetStore::get)
+                    .filter(t -> t != null)
+                    .forEach(vessels::add);
+        }
+
+        result.setVessels(vessels.stream()
+                .map(VesselTargetListVo::new)
+                .collect(Collectors.toList()));
+        return result;
+    }
+
     /**
      * Computes the vessels within the given OpenLayers bounds
      * @param top the top latitude
@@ -159,52 +356,110 @@ public class VesselRestService  {
      */
     public List<VesselTargetListVo> computeVessels(Float top, Float left, Float bottom, Float right, Integer[] mmsi, String filter, int maxHits) throws Exception {
 
-        // Construct the filters used for filtering the vessel target list
-        Predicate<VesselTarget> mmsiFilter = hasMmsi(mmsi);
-        Predicate<VesselTarget> boundsFilter = withinOpenLayersBounds(top, left, bottom, right);
-        VesselTargetFilter searchFilter = new VesselTargetFilter(filter);
+        // Always include the targets with the given MMSI's
+        Set<VesselTarget> result = new LinkedHashSet<>();
+        if (mmsi != null) {
+            Arrays.stream(mmsi)
+                    .map(targetStore::get)
+                    .filter(t -> t != null)
+                    .forEach(result::add);
+        }
 
-        return targetStore.list()
-                .stream()
-                .filter(t -> mmsiFilter.test(t) || (boundsFilter.test(t) && searchFilter.test(t)))
+        // Start from the targets matching the attribute filters, if they are fewer than
+        // the estimated number of targets within the bounds. Otherwise use the spatial index
+        VesselTargetFilter searchFilter = new VesselTargetFilter(filter, attributeIndex);
+        int indexedCount = searchFilter.getIndexedCount();
+        if (indexedCount >= 0 && indexedCount < targetStore.size() * SpatialIndex.coverage(top, left, bottom, right)) {
+            searchFilter.getIndexedTargets()
+                    .stream()
+                    .filter(t -> SpatialIndex.contains(t, top, left, bottom, right))
+                    .filter(searchFilter)
+                    .forEach(result::add);
+        } else {
+            spatialIndex.query(top, left, bottom, right)
+                    .stream()
+                    .filter(searchFilter)
+                    .forEach(result::add);
+        }
+
+        return result.stream()
                 .limit(maxHits)
                 .map(VesselTargetListVo::new)
                 .collect(Collectors.toList());
     }
 
     /**
-     * Returns the past track for the given MMSI
+     * Returns the past track for the given MMSI, or status 400 if there is no active vessel target with the MMSI
      * @param mmsi the MMSI of the target
      * @param minDist the minimum distance between past track positions
      * @param ageStr the age of the past track positions
+     * @param zoom optionally, the zoom level of the map, which determines the simplification tolerance
      * @param response the servlet response
-     * @return the past track for the given MMSI
      */
     @RequestMapping(
             value = "/track/{mmsi}",
             method = RequestMethod.GET,
             produces = "application/json;charset=UTF-8")
-    @ResponseBody
-    public List<PastTrackPosVo> getTrack(
+    public void getTrack(
             @PathVariable("mmsi") Integer mmsi,
             @RequestParam(value="minDist", required = false) Integer minDist,
             @RequestParam(value="age", required = false) String ageStr,
+            @RequestParam(value="zoom", required = false) Integer zoom,
             HttpServletResponse response
-    ) {
+    ) throws IOException {
         long t0 = System.currentTimeMillis();
         Duration age = null;
         if (ageStr != null) {
             age = Duration.parse(ageStr);
         }
-        List<PastTrackPos> track = targetStore.getPastTracks(mmsi, minDist, age);
+        TrackBuffer track = targetStore.getPastTracks(mmsi, minDist, age, zoom);
         if (track == null) {
-            response.setStatus( HttpServletResponse.SC_BAD_REQUEST);
-            return null;
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
         }
+        PastTrackJsonWriter.write(track, response);
         LOG.info(String.format("/track returned %d positions in %d ms", track.size(), System.currentTimeMillis() - t0));
-        return track.stream()
-                .map(PastTrackPosVo::new)
-                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the past tracks for the given MMSIs in a single response.
+     * <p>
+     * The past tracks are loaded with a single batched query, and streamed as a JSON object
+     * with a field per MMSI of an active vessel target. The MMSIs may be passed in a POST request,
+     * to allow for long lists. Requests for more than {@code maxTrackMmsis} MMSIs are rejected.
+     *
+     * @param mmsi the MMSIs of the targets
+     * @param minDist the minimum distance between past track positions
+     * @param ageStr the age of the past track positions
+     * @param zoom optionally, the zoom level of the map, which determines the simplification tolerance
+     * @param response the servlet response
+     */
+    @RequestMapping(
+            value = "/tracks",
+            method = { RequestMethod.GET, RequestMethod.POST },
+            produces = "application/json;charset=UTF-8")
+    public void getTracks(
+            @RequestParam(value="mmsi") Integer[] mmsi,
+            @RequestParam(value="minDist", required = false) Integer minDist,
+            @RequestParam(value="age", required = false) String ageStr,
+            @RequestParam(value="zoom", required = false) Integer zoom,
+            HttpServletResponse response
+    ) throws IOException {
+        if (mmsi.length > maxTrackMmsis) {
+            response.setStatus( HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        long t0 = System.currentTimeMillis();
+        Duration age = null;
+        if (ageStr != null) {
+            age = Duration.parse(ageStr);
+        }
+        Map<Integer, TrackBuffer> tracks = targetStore.getPastTracks(Arrays.asList(mmsi), minDist, age, zoom);
+        PastTrackJsonWriter.write(tracks, response);
+        LOG.info(String.format("/tracks returned %d tracks with %d positions in %d ms",
+                tracks.size(),
+                tracks.values().stream().mapToInt(TrackBuffer::size).sum(),
+                System.currentTimeMillis() - t0));
     }
 
 
@@ -221,53 +476,6 @@ public class VesselRestService  {
         return ShipType.UNDEFINED;
     }
 
-    /**
-     * Returns a predicates that include targets with an mmsi in the list
-     * @param mmsi the MMSI's to include
-     * @return a predicate filtering the targets on MMSI
-     */
-    private static Predicate<VesselTarget> hasMmsi(Integer[] mmsi) {
-        final Set<Integer> mmsiLookup = new HashSet<>();
-        if (mmsi != null && mmsi.length > 0) {
-            mmsiLookup.addAll(Arrays.asList(mmsi));
-        }
-        return t -> mmsiLookup.contains(t.getMmsi());
-    }
-
-    /**
-     * A predicate that filters for vessels that are withing the given OpenLayers bounds
-     * @param top the top latitude
-     * @param left the left longitude
-     * @param bottom the bottom latitude
-     * @param right the right longitude
-     * @return if the vessel is withing the given bounds
-     */
-    private static Predicate<VesselTarget> withinOpenLayersBounds(float top, float left, float bottom, float right) {
-        return t -> !(t.getLat() == null || t.getLon() == null) &&
-                    t.getLat() <= top && t.getLat() >= bottom && withinOpenLayersLongitude(t.getLon(), left, right);
-    }
-
-    /**
-     * Returns if the longitude is within the given bounds.
-     * <p>
-     * The way OpenLayers define bounds, the left longitude is ALWAYS smaller than
-     * the right longitude. So if the bounds cross the date line, the left longitude may
-     * be less than -180 or the right longitude greater than 180 degrees.
-     *
-     * @param lon the longitude to test
-     * @param left the left longitude
-     * @param right the right longitude
-     * @return if the longitude is within the given bounds
-     */
-   private static boolean withinOpenLayersLongitude(float lon, float left, float right) {
-       if (left < -180) {
-           return (lon <= right && lon >= -180) || lon >= left + 360;
-       } else if (right > 180) {
-           return (lon >= left && lon <= 180) || lon <= right - 360;
-       }
-       return lon >= left && lon <= right;
-   }
-
 
     /**
      * Rest call used for returning an auto-complete search filter option list
@@ -286,7 +494,44 @@ public class VesselRestService  {
             @RequestParam(value="term", defaultValue = "") String term,
             @RequestParam(value="maxHits", defaultValue = "20") int maxHits
     ) {
-        return VesselTargetFilter.getSearchFilterOptions(targetStore, key, term, maxHits);
+        return VesselTargetFilter.getSearchFilterOptions(searchIndex, key, term, maxHits);
     }
 
+    /**
+     * The cache key of a list or cluster result
+     */
+    static final class ResultKey {
+        final String type;
+        final long epoch;
+        final float[] bounds;
+        final List<Integer> mmsi;
+        final String filter;
+        final float cellSize;
+        final int maxHits;
+
+        ResultKey(String type, long epoch, float[] bounds, Integer[] mmsi, String filter, float cellSize, int maxHits) {
+            this.type = type;
+            this.epoch = epoch;
+            this.bounds = bounds;
+            this.mmsi = mmsi != null ? Arrays.asList(mmsi) : Collections.emptyList();
+            this.filter = StringUtils.trimToEmpty(filter);
+            this.cellSize = cellSize;
+            this.maxHits = maxHits;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ResultKey that = (ResultKey) o;
+            return epoch == that.epoch && cellSize == that.cellSize && maxHits == that.maxHits &&
+                    type.equals(that.type) && Arrays.equals(bounds, that.bounds) &&
+                    mmsi.equals(that.mmsi) && filter.equals(that.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, epoch, Arrays.hashCode(bounds), mmsi, filter, cellSize, maxHits);
+        }
+    }
 }
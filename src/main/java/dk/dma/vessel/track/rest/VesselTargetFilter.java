@@ -2,13 +2,15 @@ package dk.dma.vessel.track.rest;
 
 import dk.dma.ais.message.NavigationalStatus;
 import dk.dma.ais.message.ShipTypeCargo;
-import dk.dma.enav.model.Country;
+import dk.dma.ais.packet.AisPacketTags.SourceType;
 import dk.dma.vessel.track.model.VesselTarget;
-import dk.dma.vessel.track.store.TargetStore;
+import dk.dma.vessel.track.store.AttributeIndex;
+import dk.dma.vessel.track.store.SearchIndex;
 import org.apache.commons.lang.StringUtils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -23,6 +25,9 @@ import java.util.stream.Collectors;
  * <p>
  * The class also provides functionality for generating VisualSearch auto-complete
  * search filter options.
+ * <p>
+ * If an {@linkplain AttributeIndex} is specified, the country, type, status and source
+ * filters are evaluated as a single bitmap lookup of the matching targets.
  */
 public class VesselTargetFilter implements Predicate<VesselTarget> {
 
@@ -35,16 +40,33 @@ public class VesselTargetFilter implements Predicate<VesselTarget> {
     Set<String> country = new HashSet<>();
     Set<ShipTypeCargo.ShipType> type = new HashSet<>();
     Set<Integer> status = new HashSet<>();
+    Set<SourceType> source = new HashSet<>();
     boolean filterDefined = false;
 
+    AttributeIndex attributeIndex;
+    BitSet indexed;
+
     /**
      * Constructor
      * @param filter the filter
      */
     public VesselTargetFilter(String filter) {
+        this(filter, null);
+    }
+
+    /**
+     * Constructor
+     * @param filter the filter
+     * @param attributeIndex optionally, the attribute index used for the country, type, status and source filters
+     */
+    public VesselTargetFilter(String filter, AttributeIndex attributeIndex) {
         if (StringUtils.isNotBlank(filter)) {
             parseFilter(filter);
         }
+        if (attributeIndex != null) {
+            this.attributeIndex = attributeIndex;
+            this.indexed = attributeIndex.match(country, type, status, source);
+        }
     }
 
     private void parseFilter(String filter) {
@@ -75,11 +97,32 @@ public class VesselTargetFilter implements Predicate<VesselTarget> {
                     case "status":
                         status.add(Integer.valueOf(value));
                         break;
+                    case "source":
+                        source.add(SourceType.valueOf(value));
+                        break;
                 }
             }
         }
         filterDefined = mmsi.size() + name.size() + callsign.size() +
-                imo.size() + country.size() + type.size() + status.size() > 0;
+                imo.size() + country.size() + type.size() + status.size() + source.size() > 0;
+    }
+
+    /**
+     * Returns the targets matching the indexed country, type, status and source filters,
+     * or null if these filters are not defined or no attribute index is used
+     * @return the targets matching the indexed filters, or null
+     */
+    public List<VesselTarget> getIndexedTargets() {
+        return indexed != null ? attributeIndex.getTargets(indexed) : null;
+    }
+
+    /**
+     * Returns the number of targets matching the indexed country, type, status and source filters,
+     * or -1 if these filters are not defined or no attribute index is used
+     * @return the number of targets matching the indexed filters, or -1
+     */
+    public int getIndexedCount() {
+        return indexed != null ? indexed.cardinality() : -1;
     }
 
     /**
@@ -108,6 +151,9 @@ public class VesselTargetFilter implements Predicate<VesselTarget> {
         if (included && !imo.isEmpty()) {
             included = t.getImoNo() != null && imo.contains(t.getImoNo());
         }
+        if (indexed != null) {
+            return included && attributeIndex.contains(indexed, t);
+        }
         if (included && !country.isEmpty()) {
             included = t.getCountry() != null && country.contains(t.getCountry());
         }
@@ -117,54 +163,32 @@ public class VesselTargetFilter implements Predicate<VesselTarget> {
         if (included && !status.isEmpty()) {
             included = t.getNavStatus() != null && status.contains(t.getNavStatus().getCode());
         }
+        if (included && !source.isEmpty()) {
+            included = t.getSourceType() != null && source.contains(t.getSourceType());
+        }
         return included;
     }
 
     /**
      * Rest call used for returning an auto-complete search filter option list
-     * @param targetStore the target store
+     * @param searchIndex the search index
      * @param key the type of vessel target attribute to filter on
      * @param term the search term
      * @param maxHits the maximum number of values to return
      * @return the search filter option list
      */
-    public static  List<SearchFilterOptionVo> getSearchFilterOptions(TargetStore targetStore, String key, String term, int maxHits) {
+    public static  List<SearchFilterOptionVo> getSearchFilterOptions(SearchIndex searchIndex, String key, String term, int maxHits) {
 
         switch (key) {
             case "mmsi":
-                return targetStore.list().stream()
-                        .filter(t -> String.valueOf(t.getMmsi()).startsWith(term))
-                        .limit(maxHits)
-                        .map(t -> new SearchFilterOptionVo(String.valueOf(t.getMmsi())))
-                        .collect(Collectors.toList());
             case "callsign":
-                return targetStore.list().stream()
-                        .filter(t -> StringUtils.isNotBlank(t.getCallsign()) && t.getCallsign().toLowerCase().startsWith(term.toLowerCase()))
-                        .limit(maxHits)
-                        .map(t -> new SearchFilterOptionVo(t.getCallsign()))
-                        .collect(Collectors.toList());
             case "imo":
-                return targetStore.list().stream()
-                        .filter(t -> t.getImoNo() != null && String.valueOf(t.getImoNo()).startsWith(term))
-                        .limit(maxHits)
-                        .map(t -> new SearchFilterOptionVo(String.valueOf(t.getImoNo())))
-                        .collect(Collectors.toList());
             case "name":
-                return targetStore.list().stream()
-                        .filter(t -> StringUtils.isNotBlank(t.getName()) && t.getName().toLowerCase().startsWith(term.toLowerCase()))
-                        .limit(maxHits)
-                        .map(t -> new SearchFilterOptionVo(t.getName()))
+                return searchIndex.search(key, term, maxHits).stream()
+                        .map(SearchFilterOptionVo::new)
                         .collect(Collectors.toList());
             case "country":
-                // NB: Inefficient way of getting hold of relevant countries
-                //     Change Country to get access to list of countries
-                return targetStore.list().stream()
-                        .filter(t -> StringUtils.isNotBlank(t.getCountry()))
-                        .map(VesselTarget::getCountry)
-                        .distinct()
-                        .map(Country::getByCode)
-                        .filter(c -> c.getName().toLowerCase().startsWith(term.toLowerCase()))
-                        .limit(maxHits)
+                return searchIndex.searchCountries(term, maxHits).stream()
                         .map(c -> new SearchFilterOptionVo(c.getName(), c.getTwoLetter()))
                         .collect(Collectors.toList());
             case "type":
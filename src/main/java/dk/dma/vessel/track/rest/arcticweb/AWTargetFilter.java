@@ -20,6 +20,7 @@ import dk.dma.enav.model.geometry.BoundingBox;
 import dk.dma.enav.model.geometry.Circle;
 import dk.dma.enav.model.geometry.CoordinateSystem;
 import dk.dma.enav.model.geometry.Position;
+import dk.dma.vessel.track.model.GeoUtils;
 import dk.dma.vessel.track.model.VesselTarget;
 import org.apache.commons.lang.StringUtils;
 
@@ -39,6 +40,7 @@ public class AWTargetFilter {
     Long ttlSat;
     Set<String> mmsis;
     List<Area> geos;
+    List<double[]> geoBounds;
 
     public AWTargetFilter() {
 
@@ -104,6 +106,14 @@ public class AWTargetFilter {
         this.geos = geos;
     }
 
+    public List<double[]> getGeoBounds() {
+        return geoBounds;
+    }
+
+    public void setGeoBounds(List<double[]> geoBounds) {
+        this.geoBounds = geoBounds;
+    }
+
     public static Integer getInt(String str) {
         if (str == null) {
             return null;
@@ -128,4 +138,37 @@ public class AWTargetFilter {
         return null;
     }
 
+    /**
+     * Returns the bounds of the given geometry as OpenLayers bounds, i.e. top, left, bottom and right,
+     * where the left longitude may be less than -180 or the right longitude greater than 180 degrees
+     * if the bounds cross the date line
+     * @param geometry the geometry, either a "circle" or a "bb"
+     * @return the bounds of the geometry, or null if unknown
+     */
+    public static double[] getGeometryBounds(String geometry) {
+        String[] elems = StringUtils.split(geometry, ',');
+        double[] numbers = new double[elems.length - 1];
+        for (int i = 1; i < elems.length; i++) {
+            numbers[i - 1] = Double.parseDouble(elems[i]);
+        }
+        if (elems[0].equalsIgnoreCase("circle")) {
+            double dLat = Math.toDegrees(numbers[2] / GeoUtils.EARTH_RADIUS);
+            double top = Math.min(90, numbers[0] + dLat);
+            double bottom = Math.max(-90, numbers[0] - dLat);
+            double cosLat = Math.cos(Math.toRadians(Math.max(Math.abs(top), Math.abs(bottom))));
+            if (top >= 90 || bottom <= -90 || dLat >= 90 * cosLat) {
+                return new double[] { top, -180, bottom, 180 };
+            }
+            double dLon = dLat / cosLat;
+            return new double[] { top, numbers[1] - dLon, bottom, numbers[1] + dLon };
+        }
+        if (elems[0].equalsIgnoreCase("bb")) {
+            return new double[] {
+                    Math.max(numbers[0], numbers[2]), Math.min(numbers[1], numbers[3]),
+                    Math.min(numbers[0], numbers[2]), Math.max(numbers[1], numbers[3])
+            };
+        }
+        return null;
+    }
+
 }
@@ -1,16 +1,18 @@
 package dk.dma.vessel.track.rest.arcticweb;
 
 import dk.dma.vessel.track.model.MaxSpeed;
-import dk.dma.vessel.track.model.PastTrackPos;
+import dk.dma.vessel.track.model.TrackBuffer;
 import dk.dma.vessel.track.model.VesselTarget;
-import dk.dma.vessel.track.rest.PastTrackPosVo;
+import dk.dma.vessel.track.rest.PastTrackJsonWriter;
 import dk.dma.vessel.track.store.AisStoreClient;
 import dk.dma.vessel.track.store.DefaultMaxSpeedValues;
+import dk.dma.vessel.track.store.SpatialIndex;
 import dk.dma.vessel.track.store.TargetStore;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -19,9 +21,13 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.time.Duration;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
@@ -43,6 +49,12 @@ public class AWVesselService {
     @Autowired
     AisStoreClient aisStoreClient;
 
+    @Autowired
+    SpatialIndex spatialIndex;
+
+    @Value("${maxTrackMmsis:1000}")
+    int maxTrackMmsis;
+
     /**
      * Returns the vessel target with the given MMSI
      * @param mmsi the MMSI
@@ -96,9 +108,19 @@ public class AWVesselService {
         }
         if (geo != null && geo.length > 0) {
             filter.setGeos(Arrays.asList(geo).stream().map(AWTargetFilter::getGeometry).collect(Collectors.toList()));
+            filter.setGeoBounds(Arrays.asList(geo).stream().map(AWTargetFilter::getGeometryBounds).collect(Collectors.toList()));
+        }
+
+        // Only test the targets within the bounds of the geometries, if defined
+        Collection<VesselTarget> candidates = targetStore.list();
+        if (filter.getGeoBounds() != null && !filter.getGeoBounds().contains(null)) {
+            candidates = new LinkedHashSet<>();
+            for (double[] b : filter.getGeoBounds()) {
+                candidates.addAll(spatialIndex.query(b[0], b[1], b[2], b[3]));
+            }
         }
 
-        List<VesselTarget> result =  targetStore.list().stream()
+        List<VesselTarget> result =  candidates.stream()
                 .filter(filter::test)
                 .collect(Collectors.toList());
 
@@ -122,38 +144,77 @@ public class AWVesselService {
     }
 
     /**
-     * Returns the past track for the given MMSI
+     * Returns the past track for the given MMSI, or status 400 if there is no active vessel target with the MMSI
      * @param mmsi the MMSI of the target
      * @param minDist the minimum distance between past track positions
      * @param ageStr the age of the past track positions
+     * @param zoom optionally, the zoom level of the map, which determines the simplification tolerance
      * @param response the servlet response
-     * @return the past track for the given MMSI
      */
     @RequestMapping(
             value = "/track/{mmsi}",
             method = RequestMethod.GET,
             produces = "application/json;charset=UTF-8")
-    @ResponseBody
-    public List<PastTrackPosVo> getTrack(
+    public void getTrack(
             @PathVariable("mmsi") Integer mmsi,
             @RequestParam(value="minDist", required = false) Integer minDist,
             @RequestParam(value="age", required = false) String ageStr,
+            @RequestParam(value="zoom", required = false) Integer zoom,
             HttpServletResponse response
-    ) {
+    ) throws IOException {
         long t0 = System.currentTimeMillis();
         Duration age = null;
         if (ageStr != null) {
             age = Duration.parse(ageStr);
         }
-        List<PastTrackPos> track = targetStore.getPastTracks(mmsi, minDist, age);
+        TrackBuffer track = targetStore.getPastTracks(mmsi, minDist, age, zoom);
         if (track == null) {
-            response.setStatus( HttpServletResponse.SC_BAD_REQUEST);
-            return null;
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
         }
+        PastTrackJsonWriter.write(track, response);
         LOG.info(String.format("/track returned %d positions in %d ms", track.size(), System.currentTimeMillis() - t0));
-        return track.stream()
-                .map(PastTrackPosVo::new)
-                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the past tracks for the given MMSIs in a single response.
+     * <p>
+     * The past tracks are loaded with a single batched query, and streamed as a JSON object
+     * with a field per MMSI of an active vessel target. The MMSIs may be passed in a POST request,
+     * to allow for long lists. Requests for more than {@code maxTrackMmsis} MMSIs are rejected.
+     *
+     * @param mmsi the MMSIs of the targets
+     * @param minDist the minimum distance between past track positions
+     * @param ageStr the age of the past track positions
+     * @param zoom optionally, the zoom level of the map, which determines the simplification tolerance
+     * @param response the servlet response
+     */
+    @RequestMapping(
+            value = "/tracks",
+            method = { RequestMethod.GET, RequestMethod.POST },
+            produces = "application/json;charset=UTF-8")
+    public void getTracks(
+            @RequestParam(value="mmsi") Integer[] mmsi,
+            @RequestParam(value="minDist", required = false) Integer minDist,
+            @RequestParam(value="age", required = false) String ageStr,
+            @RequestParam(value="zoom", required = false) Integer zoom,
+            HttpServletResponse response
+    ) throws IOException {
+        if (mmsi.length > maxTrackMmsis) {
+            response.setStatus( HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        long t0 = System.currentTimeMillis();
+        Duration age = null;
+        if (ageStr != null) {
+            age = Duration.parse(ageStr);
+        }
+        Map<Integer, TrackBuffer> tracks = targetStore.getPastTracks(Arrays.asList(mmsi), minDist, age, zoom);
+        PastTrackJsonWriter.write(tracks, response);
+        LOG.info(String.format("/tracks returned %d tracks with %d positions in %d ms",
+                tracks.size(),
+                tracks.values().stream().mapToInt(TrackBuffer::size).sum(),
+                System.currentTimeMillis() - t0));
     }
 
     /**
@@ -161,32 +222,30 @@ public class AWVesselService {
      * @param mmsi the MMSI of the target
      * @param minDist the minimum distance between past track positions
      * @param ageStr the age of the past track positions
+     * @param zoom optionally, the zoom level of the map, which determines the simplification tolerance
      * @param response the servlet response
-     * @return the past track for the given MMSI
      */
     @RequestMapping(
             value = "/longtrack/{mmsi}",
             method = RequestMethod.GET,
             produces = "application/json;charset=UTF-8")
-    @ResponseBody
-    public List<PastTrackPosVo> getLongTrack(
+    public void getLongTrack(
             @PathVariable("mmsi") Integer mmsi,
             @RequestParam(value="minDist", required = false) Integer minDist,
             @RequestParam(value="age", required = false) String ageStr,
+            @RequestParam(value="zoom", required = false) Integer zoom,
             HttpServletResponse response
-    ) {
+    ) throws IOException {
         Duration age = null;
         if (ageStr != null) {
             age = Duration.parse(ageStr);
         }
-        List<PastTrackPos> track = aisStoreClient.getPastTrack(mmsi, minDist, age);
+        TrackBuffer track = aisStoreClient.getPastTrack(mmsi, minDist, age, zoom);
         if (track == null) {
-            response.setStatus( HttpServletResponse.SC_BAD_REQUEST);
-            return null;
+            response.setStatus( HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
         }
-        return track.stream()
-                .map(PastTrackPosVo::new)
-                .collect(Collectors.toList());
+        PastTrackJsonWriter.write(track, response);
     }
 
     /**
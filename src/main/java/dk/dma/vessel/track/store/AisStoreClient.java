@@ -14,13 +14,16 @@
  */
 package dk.dma.vessel.track.store;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.message.IVesselPositionMessage;
 import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.reader.AisReader;
 import dk.dma.ais.reader.AisReaders;
-import dk.dma.vessel.track.model.PastTrack;
-import dk.dma.vessel.track.model.PastTrackPos;
+import dk.dma.vessel.track.model.TrackBuffer;
+import dk.dma.vessel.track.model.TrackSimplifier;
 import dk.dma.vessel.track.model.VesselTarget;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -28,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,10 +39,11 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.time.Duration;
-import java.time.ZonedDateTime;
+import java.time.Instant;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
@@ -61,70 +66,182 @@ public class AisStoreClient {
     @Value("${pastTrackMinDist}")
     String pastTrackMinDist;
 
-    public List<PastTrackPos> getPastTrack(int mmsi, Integer minDist, Duration age) {
+    @Value("${pastTrackSimplifier:douglas-peucker}")
+    String pastTrackSimplifier;
+
+    @Value("${aisStoreCachePositions:1000000}")
+    long cachePositions;
+
+    @Value("${aisStoreCacheBucket:PT5M}")
+    String cacheBucket;
+
+    TrackSimplifier simplifier;
+
+    /** The parsed past tracks, by MMSI, age and end of the time bucket */
+    Cache<TrackKey, TrackBuffer> trackCache;
+    long bucketMillis;
+
+    /**
+     * Called when the client is initialized
+     */
+    @PostConstruct
+    public void init() {
+        simplifier = TrackSimplifier.forName(pastTrackSimplifier);
+        bucketMillis = Duration.parse(cacheBucket).toMillis();
+        trackCache = CacheBuilder.newBuilder()
+                .maximumWeight(cachePositions)
+                .weigher((TrackKey key, TrackBuffer track) -> 1 + track.size())
+                .expireAfterWrite(bucketMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
 
-        // Determine URL
+    /**
+     * Returns the past track of the given MMSI from AisStore, simplified in the same way as
+     * the past tracks of the {@linkplain TargetStore}.
+     * <p>
+     * The requested period is aligned to the end of the current {@code aisStoreCacheBucket}, and the
+     * parsed past tracks are cached by MMSI, age and time bucket, up to {@code aisStoreCachePositions}
+     * positions in total. Concurrent identical requests share a single fetch from AisStore, and if
+     * the thread making the shared fetch is interrupted, the waiting threads retry the fetch.
+     *
+     * @param mmsi the MMSI
+     * @param minDist the simplification tolerance in meters, used if no zoom level is given
+     * @param age the duration of the past track
+     * @param zoom optionally, the zoom level of the map, from which the simplification tolerance is derived
+     * @return the past track in chronological order, or null if the calling thread is interrupted
+     */
+    public TrackBuffer getPastTrack(int mmsi, Integer minDist, Duration age, Integer zoom) {
         age = age != null ? age : Duration.parse(pastTrackTtl);
         minDist = minDist == null ? Integer.valueOf(pastTrackMinDist) : minDist;
-        ZonedDateTime now = ZonedDateTime.now();
-        String from = now.format(DateTimeFormatter.ISO_INSTANT);
-        ZonedDateTime end = now.minus(age);
-        String to = end.format(DateTimeFormatter.ISO_INSTANT);
-        String interval = String.format("%s/%s", to, from);
-        String url = String.format("%s?mmsi=%d&interval=%s", aisViewUrl, mmsi, interval);
+        long to = (System.currentTimeMillis() / bucketMillis + 1) * bucketMillis;
+        long from = to - age.toMillis();
+
+        TrackKey key = new TrackKey(mmsi, age.toMillis(), to);
+        TrackBuffer track = null;
+        while (track == null) {
+            try {
+                track = trackCache.get(key, () -> {
+                    try {
+                        return fetchPastTrack(mmsi, from, to);
+                    } catch (InterruptedException e) {
+                        // Restore the flag, so that this thread can tell its own interruption from that of another
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                });
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                if (!(e.getCause() instanceof InterruptedException)) {
+                    LOG.error("Failed to fetch past track from AisStore: " + e.getCause());
+                    throw new InternalError("REST endpoint failed");
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                // The shared fetch of another thread was interrupted, and failed loads are not cached, so retry
+            }
+        }
 
+        // The cached past track is shared, so simplify a copy
+        track = track.copy();
+        double tolerance = zoom != null && !track.isEmpty()
+                ? TrackSimplifier.zoomTolerance(zoom, track.getLat(track.size() - 1))
+                : minDist;
+        simplifier.simplify(track, tolerance);
+        return track;
+    }
 
-        final List<PastTrackPos> track = new ArrayList<>();
-        try {
-            long t0 = System.currentTimeMillis();
+    /**
+     * Fetches and parses the past track of the given MMSI for the given period from AisStore
+     * @param mmsi the MMSI
+     * @param from the start of the period
+     * @param to the end of the period
+     * @return the past track in chronological order
+     */
+    private TrackBuffer fetchPastTrack(int mmsi, long from, long to) throws IOException, InterruptedException {
 
-            // TEST
-            url = url + "&filter=" + URLEncoder.encode("(s.country not in (GBR)) & (s.region!=808)", "UTF-8");
+        // Determine URL
+        String interval = String.format("%s/%s",
+                DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(from)),
+                DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(to)));
+        String url = String.format("%s?mmsi=%d&interval=%s", aisViewUrl, mmsi, interval);
 
-            // Set up a few timeouts and fetch the attachment
-            URLConnection con = new URL(url).openConnection();
-            con.setConnectTimeout(10 * 1000);       // 10 seconds
-            con.setReadTimeout(60 * 1000);      // 1 minute
+        final TrackBuffer track = new TrackBuffer();
+        long t0 = System.currentTimeMillis();
 
-            if (!StringUtils.isEmpty(aisAuthHeader)) {
-                con.setRequestProperty ("Authorization", aisAuthHeader);
-            }
+        // TEST
+        url = url + "&filter=" + URLEncoder.encode("(s.country not in (GBR)) & (s.region!=808)", "UTF-8");
 
-            try (InputStream in = con.getInputStream();
-                BufferedInputStream bin = new BufferedInputStream(in)) {
-                AisReader aisReader = AisReaders.createReaderFromInputStream(bin);
-                aisReader.registerPacketHandler(new Consumer<AisPacket>() {
-                    @Override
-                    public void accept(AisPacket p) {
-                        AisMessage message = p.tryGetAisMessage();
-                        if (message == null || !(message instanceof IVesselPositionMessage)) {
-                            return;
-                        }
-                        VesselTarget target = new VesselTarget();
-                        target.merge(p, message);
-                        if (!target.checkValidPos()) {
-                            return;
-                        }
-                        track.add(new PastTrackPos(target.getLat(), target.getLon(), target.getCog(), target.getSog(), target
-                                .getLastPosReport()));
+        // Set up a few timeouts and fetch the attachment
+        URLConnection con = new URL(url).openConnection();
+        con.setConnectTimeout(10 * 1000);       // 10 seconds
+        con.setReadTimeout(60 * 1000);      // 1 minute
+
+        if (!StringUtils.isEmpty(aisAuthHeader)) {
+            con.setRequestProperty ("Authorization", aisAuthHeader);
+        }
+
+        try (InputStream in = con.getInputStream();
+            BufferedInputStream bin = new BufferedInputStream(in)) {
+            AisReader aisReader = AisReaders.createReaderFromInputStream(bin);
+            aisReader.registerPacketHandler(new Consumer<AisPacket>() {
+                @Override
+                public void accept(AisPacket p) {
+                    AisMessage message = p.tryGetAisMessage();
+                    if (message == null || !(message instanceof IVesselPositionMessage)) {
+                        return;
                     }
-                });
-                aisReader.start();
-                try {
-                    aisReader.join();
-                } catch (InterruptedException e) {
-                    return null;
+                    VesselTarget target = new VesselTarget(mmsi);
+                    target.merge(p, message);
+                    if (!target.checkValidPos()) {
+                        return;
+                    }
+                    track.add(target.getLat(), target.getLon(),
+                            target.getCog() != null ? target.getCog() : 0f,
+                            target.getSog() != null ? target.getSog() : 0f,
+                            target.getLastPosReport().getTime());
                 }
-            }
-            LOG.info(String.format("Read %d past track positions in %d ms",
-                    track.size(),
-                    System.currentTimeMillis() - t0));
+            });
+            aisReader.start();
+            aisReader.join();
         } catch (IOException e) {
             LOG.error("Failed to make REST query: " + url);
-            throw new InternalError("REST endpoint failed");
+            throw e;
         }
-        LOG.info("AisStore returned track with " + track.size() + " points");
-        return PastTrack.downSample(track, minDist, age.toMillis());
+        track.sort();
+
+        LOG.info(String.format("AisStore returned track with %d points in %d ms (cache hit rate %.2f)",
+                track.size(),
+                System.currentTimeMillis() - t0,
+                trackCache.stats().hitRate()));
+        return track;
     }
 
+    /**
+     * The cache key of a past track
+     */
+    static final class TrackKey {
+        final int mmsi;
+        final long age;
+        final long to;
+
+        TrackKey(int mmsi, long age, long to) {
+            this.mmsi = mmsi;
+            this.age = age;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            TrackKey that = (TrackKey) o;
+            return mmsi == that.mmsi && age == that.age && to == that.to;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mmsi, age, to);
+        }
+    }
 }
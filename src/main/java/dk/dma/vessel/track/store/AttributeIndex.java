@@ -0,0 +1,291 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import dk.dma.ais.message.NavigationalStatus;
+import dk.dma.ais.message.ShipTypeCargo;
+import dk.dma.ais.message.ShipTypeCargo.ShipType;
+import dk.dma.ais.packet.AisPacketTags.SourceType;
+import dk.dma.vessel.track.model.VesselTarget;
+import dk.dma.vessel.track.model.VesselTargetCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bitmap indexes of the country, ship type, navigational status and source type of the vessel targets.
+ * <p>
+ * Each indexed target is assigned a dense slot, which is kept in the target itself, and the index
+ * holds a bitmap of the slots for each attribute value. Filters on these attributes are thus
+ * evaluated as unions and intersections of bitmaps, rather than by testing each target.
+ * <p>
+ * The attributes rarely change, so the index is only locked for writing when a target is added
+ * or removed, or when one of its indexed attributes changes. Bulk reloads rebuild the index.
+ */
+@Service
+public class AttributeIndex implements TargetListener {
+
+    static final Logger LOG = LoggerFactory.getLogger(AttributeIndex.class);
+
+    static final int INDEXED_FIELDS = VesselTargetCodec.COUNTRY | VesselTargetCodec.VESSEL_TYPE |
+            VesselTargetCodec.NAV_STATUS | VesselTargetCodec.SOURCE_TYPE;
+
+    @Autowired
+    TargetStore targetStore;
+
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // The indexed targets and their attribute values by slot
+    BitSet used;
+    VesselTarget[] targets;
+    String[] countries;
+    ShipType[] types;
+    NavigationalStatus[] statuses;
+    SourceType[] sources;
+
+    // The slots of each attribute value
+    Map<String, BitSet> countryIndex;
+    Map<ShipType, BitSet> typeIndex;
+    Map<NavigationalStatus, BitSet> statusIndex;
+    Map<SourceType, BitSet> sourceIndex;
+
+    /**
+     * Registers the index with the target store and indexes the current targets
+     */
+    @PostConstruct
+    public void init() {
+        targetStore.addListener(this);
+        targetsReloaded();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void targetUpdated(VesselTarget target, int updated) {
+        if ((updated & INDEXED_FIELDS) != 0 || target.getAttributeSlot() < 0) {
+            lock.writeLock().lock();
+            try {
+                index(target);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void targetRemoved(VesselTarget target) {
+        lock.writeLock().lock();
+        try {
+            int slot = target.getAttributeSlot();
+            if (slot >= 0 && targets[slot] == target) {
+                set(slot, null, null, null, null);
+                targets[slot] = null;
+                used.clear(slot);
+            }
+            target.setAttributeSlot(-1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the targets of the store
+     */
+    @Override
+    public void targetsReloaded() {
+        long t0 = System.currentTimeMillis();
+        Collection<VesselTarget> list = targetStore.list();
+        lock.writeLock().lock();
+        try {
+            used = new BitSet();
+            targets = new VesselTarget[Math.max(1024, list.size())];
+            countries = new String[targets.length];
+            types = new ShipType[targets.length];
+            statuses = new NavigationalStatus[targets.length];
+            sources = new SourceType[targets.length];
+            countryIndex = new HashMap<>();
+            typeIndex = new EnumMap<>(ShipType.class);
+            statusIndex = new EnumMap<>(NavigationalStatus.class);
+            sourceIndex = new EnumMap<>(SourceType.class);
+
+            // Target updates wait for the lock, so the attributes indexed here are the current ones
+            for (VesselTarget t : list) {
+                t.setAttributeSlot(-1);
+                index(t);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.info("Indexed target attributes in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Indexes the current attributes of the target, and assigns a slot to the target if needed.
+     * Must be called whilst holding the write lock
+     * @param target the target
+     */
+    private void index(VesselTarget target) {
+        int slot = target.getAttributeSlot();
+        if (slot < 0 || targets[slot] != target) {
+            slot = used.nextClearBit(0);
+            if (slot >= targets.length) {
+                grow(targets.length * 2);
+            }
+            used.set(slot);
+            targets[slot] = target;
+            target.setAttributeSlot(slot);
+        }
+        Integer vesselType = target.getVesselType();
+        set(slot,
+                target.getCountry(),
+                vesselType != null ? new ShipTypeCargo(vesselType).getShipType() : null,
+                target.getNavStatus(),
+                target.getSourceType());
+    }
+
+    /**
+     * Updates the attribute values of the given slot, and the bitmaps of the old and new values
+     */
+    private void set(int slot, String country, ShipType type, NavigationalStatus status, SourceType source) {
+        countries[slot] = move(countryIndex, slot, countries[slot], country);
+        types[slot] = move(typeIndex, slot, types[slot], type);
+        statuses[slot] = move(statusIndex, slot, statuses[slot], status);
+        sources[slot] = move(sourceIndex, slot, sources[slot], source);
+    }
+
+    /**
+     * Moves the slot from the bitmap of the old value to the bitmap of the new value
+     * @return the new value
+     */
+    private static <T> T move(Map<T, BitSet> index, int slot, T oldValue, T value) {
+        if (oldValue != null && !oldValue.equals(value)) {
+            BitSet bits = index.get(oldValue);
+            bits.clear(slot);
+            if (bits.isEmpty()) {
+                index.remove(oldValue);
+            }
+        }
+        if (value != null) {
+            index.computeIfAbsent(value, v -> new BitSet()).set(slot);
+        }
+        return value;
+    }
+
+    private void grow(int size) {
+        targets = Arrays.copyOf(targets, size);
+        countries = Arrays.copyOf(countries, size);
+        types = Arrays.copyOf(types, size);
+        statuses = Arrays.copyOf(statuses, size);
+        sources = Arrays.copyOf(sources, size);
+    }
+
+    /**
+     * Returns the slots of the targets matching all of the given attribute sets,
+     * where an empty set matches all targets.
+     * Returns null if all the sets are empty, i.e. if the index does not restrict the targets.
+     *
+     * @param countries the countries
+     * @param types the ship types
+     * @param statuses the navigational status codes
+     * @param sources the source types
+     * @return the slots of the matching targets, or null if all sets are empty
+     */
+    public BitSet match(Set<String> countries, Set<ShipType> types, Set<Integer> statuses, Set<SourceType> sources) {
+        if (countries.isEmpty() && types.isEmpty() && statuses.isEmpty() && sources.isEmpty()) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            BitSet result = (BitSet)used.clone();
+            if (!countries.isEmpty()) {
+                result.and(union(countryIndex, countries));
+            }
+            if (!types.isEmpty()) {
+                result.and(union(typeIndex, types));
+            }
+            if (!statuses.isEmpty()) {
+                List<NavigationalStatus> navStatuses = new ArrayList<>();
+                statuses.forEach(s -> navStatuses.add(NavigationalStatus.get(s)));
+                result.and(union(statusIndex, navStatuses));
+            }
+            if (!sources.isEmpty()) {
+                result.and(union(sourceIndex, sources));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static <T> BitSet union(Map<T, BitSet> index, Iterable<T> values) {
+        BitSet result = new BitSet();
+        for (T value : values) {
+            BitSet bits = index.get(value);
+            if (bits != null) {
+                result.or(bits);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns if the target is included in the given slots
+     * @param slots the slots returned by {@linkplain #match}
+     * @param target the target
+     * @return if the target is included in the given slots
+     */
+    public boolean contains(BitSet slots, VesselTarget target) {
+        int slot = target.getAttributeSlot();
+        return slot >= 0 && slots.get(slot);
+    }
+
+    /**
+     * Returns the targets of the given slots
+     * @param slots the slots returned by {@linkplain #match}
+     * @return the targets of the given slots
+     */
+    public List<VesselTarget> getTargets(BitSet slots) {
+        List<VesselTarget> result = new ArrayList<>(slots.cardinality());
+        lock.readLock().lock();
+        try {
+            for (int slot = slots.nextSetBit(0); slot >= 0 && slot < targets.length; slot = slots.nextSetBit(slot + 1)) {
+                if (targets[slot] != null) {
+                    result.add(targets[slot]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+}
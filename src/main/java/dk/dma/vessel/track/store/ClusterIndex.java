@@ -0,0 +1,274 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import dk.dma.vessel.track.model.GeoUtils;
+import dk.dma.vessel.track.model.VesselTarget;
+import dk.dma.vessel.track.model.VesselTargetCodec;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Maintains the number of vessel targets per grid cell, for a fixed set of cluster cell sizes.
+ * <p>
+ * The cells are aligned with the cells of the {@code Grid} used for clustering, i.e. at multiples
+ * of the cell size from 0 degrees latitude and longitude. The counts are updated incrementally as
+ * the targets move between cells, using the position at which each target was last counted.
+ * The area of the cells of each latitude row is precomputed, so that cluster densities are cheap.
+ * <p>
+ * Target updates share a read lock, whereas a bulk reload recounts all targets under the write lock.
+ */
+@Service
+public class ClusterIndex implements TargetListener {
+
+    static final Logger LOG = LoggerFactory.getLogger(ClusterIndex.class);
+
+    @Value("${clusterCellSizes:20,12,6,3,1.5,0.8,0.4,0.2}")
+    String clusterCellSizes;
+
+    @Autowired
+    TargetStore targetStore;
+
+    Level[] levels;
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Registers the index with the target store and counts the current targets
+     */
+    @PostConstruct
+    public void init() {
+        levels = Arrays.stream(StringUtils.split(clusterCellSizes, ", "))
+                .mapToDouble(Double::parseDouble)
+                .mapToObj(Level::new)
+                .toArray(Level[]::new);
+        targetStore.addListener(this);
+        targetsReloaded();
+    }
+
+    /**
+     * Returns the index of the level with the given cell size, or -1 if the cell size is not maintained
+     * @param cellSize the cell size in degrees
+     * @return the index of the level with the given cell size
+     */
+    public int getLevel(double cellSize) {
+        for (int l = 0; l < levels.length; l++) {
+            if (Math.abs(levels[l].size - cellSize) < 1e-6) {
+                return l;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void targetUpdated(VesselTarget target, int updated) {
+        if ((updated & (VesselTargetCodec.LAT | VesselTargetCodec.LON)) != 0) {
+            lock.readLock().lock();
+            try {
+                boolean hasPos = target.isDefined(VesselTargetCodec.LAT | VesselTargetCodec.LON);
+                move(target, hasPos ? target.getLatValue() : Float.NaN, hasPos ? target.getLonValue() : Float.NaN);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void targetRemoved(VesselTarget target) {
+        lock.readLock().lock();
+        try {
+            move(target, Float.NaN, Float.NaN);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Recounts all targets
+     */
+    @Override
+    public void targetsReloaded() {
+        long t0 = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            Level[] newLevels = Arrays.stream(levels)
+                    .map(l -> new Level(l.size))
+                    .toArray(Level[]::new);
+            for (VesselTarget t : targetStore.list()) {
+                // Target updates wait for the lock, so the position counted here is the current one
+                boolean hasPos = t.isDefined(VesselTargetCodec.LAT | VesselTargetCodec.LON)
+                        && valid(t.getLatValue(), t.getLonValue());
+                float cLat = hasPos ? t.getLatValue() : Float.NaN;
+                float cLon = hasPos ? t.getLonValue() : Float.NaN;
+                t.setClusterPos(cLat, cLon);
+                if (!Float.isNaN(cLat)) {
+                    for (Level level : newLevels) {
+                        level.counts.incrementAndGet(level.cell(cLat, cLon));
+                    }
+                }
+            }
+            levels = newLevels;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.info("Counted cluster cells in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Moves the target to the cells of the given position.
+     * Must be called whilst synchronized on the target and holding the read lock
+     * @param target the target
+     * @param lat the new latitude, or NaN to remove the target
+     * @param lon the new longitude, or NaN to remove the target
+     */
+    private void move(VesselTarget target, float lat, float lon) {
+        if (!valid(lat, lon)) {
+            lat = lon = Float.NaN;
+        }
+        float oldLat = target.getClusterLat(), oldLon = target.getClusterLon();
+        boolean counted = !Float.isNaN(oldLat), count = !Float.isNaN(lat);
+        for (Level level : levels) {
+            int oldCell = counted ? level.cell(oldLat, oldLon) : -1;
+            int cell = count ? level.cell(lat, lon) : -1;
+            if (oldCell != cell) {
+                if (oldCell >= 0) {
+                    level.counts.decrementAndGet(oldCell);
+                }
+                if (cell >= 0) {
+                    level.counts.incrementAndGet(cell);
+                }
+            }
+        }
+        target.setClusterPos(lat, lon);
+    }
+
+    private static boolean valid(float lat, float lon) {
+        return Math.abs(lat) <= 90 && Math.abs(lon) <= 180;
+    }
+
+    /**
+     * Visits the non-empty cells of the given level that overlap the given OpenLayers bounds.
+     * Bounds that cross the date line are split into two longitude ranges
+     *
+     * @param level the level
+     * @param top the top latitude
+     * @param left the left longitude
+     * @param bottom the bottom latitude
+     * @param right the right longitude
+     * @param consumer the consumer of the cells
+     */
+    public void forEachCell(int level, double top, double left, double bottom, double right, CellConsumer consumer) {
+        if (top < bottom || right < left) {
+            return;
+        }
+        Level l = levels[level];
+        if (right - left >= 360) {
+            l.forEachCell(top, -180, bottom, 180, consumer);
+        } else {
+            double from = SpatialIndex.normalizeLongitude(left);
+            double to = from + (right - left);
+            l.forEachCell(top, from, bottom, Math.min(to, 180), consumer);
+            if (to > 180) {
+                l.forEachCell(top, -180, bottom, to - 360, consumer);
+            }
+        }
+    }
+
+    /**
+     * Consumes the cells of a cluster level
+     */
+    public interface CellConsumer {
+
+        /**
+         * Called for each non-empty cell
+         * @param lat the latitude of the south-west corner of the cell
+         * @param lon the longitude of the south-west corner of the cell
+         * @param size the size of the cell in degrees
+         * @param count the number of targets in the cell
+         * @param area the area of the cell in square kilometers
+         */
+        void accept(double lat, double lon, double size, int count, double area);
+    }
+
+    /**
+     * The cell counts of a single cell size
+     */
+    static class Level {
+        final double size;
+        final int rowOffset;
+        final int colOffset;
+        final int rows;
+        final int cols;
+        final AtomicIntegerArray counts;
+        final double[] rowArea;
+
+        Level(double size) {
+            this.size = size;
+            rowOffset = (int)Math.ceil(90 / size);
+            colOffset = (int)Math.ceil(180 / size);
+            rows = 2 * rowOffset;
+            cols = 2 * colOffset;
+            counts = new AtomicIntegerArray(rows * cols);
+
+            // The area of a cell between two latitudes on a sphere
+            rowArea = new double[rows];
+            double r = GeoUtils.EARTH_RADIUS / 1000;
+            for (int row = 0; row < rows; row++) {
+                double lat1 = Math.max(-90, (row - rowOffset) * size);
+                double lat2 = Math.min(90, (row - rowOffset + 1) * size);
+                rowArea[row] = r * r * Math.toRadians(size) *
+                        Math.abs(Math.sin(Math.toRadians(lat2)) - Math.sin(Math.toRadians(lat1)));
+            }
+        }
+
+        int row(double lat) {
+            return Math.max(0, Math.min(rows - 1, (int)Math.floor(lat / size) + rowOffset));
+        }
+
+        int col(double lon) {
+            return Math.max(0, Math.min(cols - 1, (int)Math.floor(lon / size) + colOffset));
+        }
+
+        int cell(double lat, double lon) {
+            return row(lat) * cols + col(lon);
+        }
+
+        void forEachCell(double top, double left, double bottom, double right, CellConsumer consumer) {
+            for (int row = row(bottom); row <= row(top); row++) {
+                for (int col = col(left); col <= col(right); col++) {
+                    int count = counts.get(row * cols + col);
+                    if (count > 0) {
+                        consumer.accept((row - rowOffset) * size, (col - colOffset) * size, size, count, rowArea[row]);
+                    }
+                }
+            }
+        }
+    }
+}
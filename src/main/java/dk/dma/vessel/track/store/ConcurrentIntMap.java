@@ -0,0 +1,526 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+/**
+ * A concurrent map from non-zero int keys to values, used in place of a
+ * {@code ConcurrentHashMap<Integer, V>} for the MMSI keyed target cache.
+ * <p>
+ * The keys are stored unboxed in open-addressing tables with linear probing, split into
+ * a fixed number of segments each guarded by a {@code StampedLock}. Look-ups use optimistic
+ * reads and only take the read lock if they race with a write to the same segment.
+ * <p>
+ * An entry costs an int key and a reference slot, i.e. 8-12 bytes per slot, or roughly
+ * 12-30 bytes per entry depending on the load factor. This compares to around 50 bytes
+ * for a {@code ConcurrentHashMap} node plus the boxed {@code Integer} key.
+ */
+public class ConcurrentIntMap<V> {
+
+    private static final int MAX_LOAD_PERCENT = 75;
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    /**
+     * Constructor
+     */
+    public ConcurrentIntMap() {
+        this(1024, 64);
+    }
+
+    /**
+     * Constructor
+     * @param initialCapacity the expected number of entries
+     * @param concurrencyLevel the number of segments. Rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentIntMap(int initialCapacity, int concurrencyLevel) {
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel) {
+            segmentCount <<= 1;
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        segments = new Segment[segmentCount];
+        int segmentCapacity = tableSize(Math.max(1, initialCapacity / segmentCount));
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<>(segmentCapacity);
+        }
+    }
+
+    /**
+     * Returns the table size that can hold the given number of entries
+     * @param entries the number of entries
+     * @return the table size
+     */
+    private static int tableSize(int entries) {
+        int size = Integer.highestOneBit(Math.max(4, entries * 100 / MAX_LOAD_PERCENT) - 1) << 1;
+        return Math.max(size, 8);
+    }
+
+    /**
+     * Spreads the bits of the key (the MurmurHash3 finalizer)
+     * @param key the key
+     * @return the hash of the key
+     */
+    static int hash(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Returns the segment of the given hash.
+     * The segment is selected by the high bits, the slot within the segment by the low bits
+     */
+    private Segment<V> segmentFor(int hash) {
+        return segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+    }
+
+    /**
+     * Checks that the key is valid
+     * @param key the key
+     */
+    private static void checkKey(int key) {
+        if (key == 0) {
+            throw new IllegalArgumentException("0 is not a valid key");
+        }
+    }
+
+    /**
+     * Returns the value of the given key
+     * @param key the key
+     * @return the value or null if not found
+     */
+    public V get(int key) {
+        if (key == 0) {
+            return null;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * Associates the value with the given key
+     * @param key the key
+     * @param value the value
+     * @return the previous value of the key or null if none
+     */
+    public V put(int key, V value) {
+        checkKey(key);
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, false);
+    }
+
+    /**
+     * Associates the value with the given key, unless the key already has a value
+     * @param key the key
+     * @param value the value
+     * @return the current value of the key or null if none
+     */
+    public V putIfAbsent(int key, V value) {
+        checkKey(key);
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, true);
+    }
+
+    /**
+     * Returns the value of the given key, and if not present, computes and adds a new value
+     * @param key the key
+     * @param mappingFunction the function computing a new value
+     * @return the current or new value of the key
+     */
+    public V computeIfAbsent(int key, IntFunction<? extends V> mappingFunction) {
+        checkKey(key);
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        V value = segment.get(key, hash);
+        return value != null ? value : segment.computeIfAbsent(key, hash, mappingFunction);
+    }
+
+    /**
+     * Removes the value of the given key
+     * @param key the key
+     * @return the removed value or null if not found
+     */
+    public V remove(int key) {
+        if (key == 0) {
+            return null;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, null);
+    }
+
+    /**
+     * Removes the given key if it currently maps to the given value
+     * @param key the key
+     * @param value the expected value
+     * @return if the entry was removed
+     */
+    public boolean remove(int key, V value) {
+        if (key == 0 || value == null) {
+            return false;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, value) != null;
+    }
+
+    /**
+     * Removes all entries whose value matches the given predicate
+     * @param filter the predicate
+     * @return the number of removed entries
+     */
+    public int removeIf(Predicate<? super V> filter) {
+        int removed = 0;
+        for (Segment<V> segment : segments) {
+            removed += segment.removeIf(filter);
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the number of entries in the map
+     * @return the number of entries in the map
+     */
+    public int size() {
+        long size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return (int)Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Calls the given consumer for each value in the map
+     * @param action the consumer
+     */
+    public void forEach(Consumer<? super V> action) {
+        Object[] buffer = new Object[0];
+        for (Segment<V> segment : segments) {
+            buffer = segment.copyValues(buffer);
+            for (Object value : buffer) {
+                if (value == null) {
+                    break;
+                }
+                action.accept(cast(value));
+            }
+        }
+    }
+
+    /**
+     * Returns a collection view of the values.
+     * <p>
+     * The iterator is weakly consistent: each segment is copied when the iteration reaches it,
+     * so changes to segments not yet visited may or may not be reflected.
+     *
+     * @return a collection view of the values
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator();
+            }
+
+            @Override
+            public int size() {
+                return ConcurrentIntMap.this.size();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V cast(Object value) {
+        return (V)value;
+    }
+
+    /**
+     * Iterates the values one segment at a time
+     */
+    private class ValueIterator implements Iterator<V> {
+        int segmentIndex;
+        int index;
+        Object[] buffer = new Object[0];
+        V next;
+
+        ValueIterator() {
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null) {
+                if (index < buffer.length && buffer[index] != null) {
+                    next = cast(buffer[index++]);
+                } else if (segmentIndex < segments.length) {
+                    buffer = segments[segmentIndex++].copyValues(buffer);
+                    index = 0;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public V next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            V result = next;
+            advance();
+            return result;
+        }
+    }
+
+    /**
+     * An open-addressing table of keys and values. The arrays are replaced as a whole when resized.
+     */
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+
+        Table(int size) {
+            keys = new int[size];
+            values = new Object[size];
+        }
+    }
+
+    /**
+     * A segment of the map
+     */
+    private static final class Segment<V> {
+
+        final StampedLock lock = new StampedLock();
+        Table table;
+        volatile int size;
+
+        Segment(int capacity) {
+            table = new Table(capacity);
+        }
+
+        /**
+         * Looks up the key in the given table. May be called without holding the lock,
+         * in which case the result is only valid if the optimistic read stamp validates.
+         */
+        private static Object find(Table table, int key, int hash) {
+            int[] keys = table.keys;
+            int mask = keys.length - 1;
+            for (int i = hash & mask, n = 0; n < keys.length; i = (i + 1) & mask, n++) {
+                int k = keys[i];
+                if (k == key) {
+                    return table.values[i];
+                } else if (k == 0) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        V get(int key, int hash) {
+            long stamp = lock.tryOptimisticRead();
+            Object value = find(table, key, hash);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    value = find(table, key, hash);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return cast(value);
+        }
+
+        V put(int key, int hash, V value, boolean onlyIfAbsent) {
+            long stamp = lock.writeLock();
+            try {
+                return insert(key, hash, value, onlyIfAbsent);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        V computeIfAbsent(int key, int hash, IntFunction<? extends V> mappingFunction) {
+            long stamp = lock.writeLock();
+            try {
+                V value = cast(find(table, key, hash));
+                if (value == null) {
+                    value = mappingFunction.apply(key);
+                    if (value != null) {
+                        insert(key, hash, value, false);
+                    }
+                }
+                return value;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /** Must be called with the write lock held */
+        private V insert(int key, int hash, V value, boolean onlyIfAbsent) {
+            int[] keys = table.keys;
+            Object[] values = table.values;
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == key) {
+                    V old = cast(values[i]);
+                    if (!onlyIfAbsent) {
+                        values[i] = value;
+                    }
+                    return old;
+                }
+                i = (i + 1) & mask;
+            }
+            // Publish the value before the key, so optimistic readers never see a key without value
+            values[i] = value;
+            keys[i] = key;
+            size = size + 1;
+            if (size * 100 > keys.length * MAX_LOAD_PERCENT) {
+                resize(keys.length << 1);
+            }
+            return null;
+        }
+
+        /** Must be called with the write lock held */
+        private void resize(int newSize) {
+            Table old = table;
+            Table t = new Table(newSize);
+            int mask = newSize - 1;
+            for (int j = 0; j < old.keys.length; j++) {
+                int key = old.keys[j];
+                if (key != 0) {
+                    int i = hash(key) & mask;
+                    while (t.keys[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    t.keys[i] = key;
+                    t.values[i] = old.values[j];
+                }
+            }
+            table = t;
+        }
+
+        V remove(int key, int hash, V expected) {
+            long stamp = lock.writeLock();
+            try {
+                int[] keys = table.keys;
+                int mask = keys.length - 1;
+                for (int i = hash & mask; keys[i] != 0; i = (i + 1) & mask) {
+                    if (keys[i] == key) {
+                        V old = cast(table.values[i]);
+                        if (expected != null && old != expected) {
+                            return null;
+                        }
+                        deleteSlot(i);
+                        return old;
+                    }
+                }
+                return null;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int removeIf(Predicate<? super V> filter) {
+            long stamp = lock.writeLock();
+            try {
+                int removed = 0;
+                int[] keys = table.keys;
+                Object[] values = table.values;
+                for (int i = 0; i < keys.length; i++) {
+                    // A deleted slot may be refilled by a shifted entry, so re-test the same slot
+                    while (keys[i] != 0 && filter.test(cast(values[i]))) {
+                        deleteSlot(i);
+                        removed++;
+                    }
+                }
+                return removed;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Deletes the entry in the given slot by shifting back the subsequent entries
+         * of the probe sequence, so that no tombstones are needed.
+         * Must be called with the write lock held.
+         */
+        private void deleteSlot(int slot) {
+            int[] keys = table.keys;
+            Object[] values = table.values;
+            int mask = keys.length - 1;
+            int i = slot;
+            int j = slot;
+            while (true) {
+                j = (j + 1) & mask;
+                if (keys[j] == 0) {
+                    break;
+                }
+                int home = hash(keys[j]) & mask;
+                // Move the entry at j back to i, unless its home slot lies cyclically within (i, j]
+                boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stays) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = 0;
+            values[i] = null;
+            size = size - 1;
+        }
+
+        /**
+         * Copies the values of the segment into the buffer, terminated by a null value
+         * if the buffer is not filled. Returns a new buffer if the given buffer is too small.
+         */
+        Object[] copyValues(Object[] buffer) {
+            long stamp = lock.readLock();
+            try {
+                if (buffer.length < size + 1) {
+                    buffer = new Object[size + 1 + (size >> 2)];
+                }
+                int n = 0;
+                Object[] values = table.values;
+                for (Object value : values) {
+                    if (value != null) {
+                        buffer[n++] = value;
+                    }
+                }
+                buffer[n] = null;
+                return buffer;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+}
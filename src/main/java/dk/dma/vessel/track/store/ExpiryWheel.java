@@ -0,0 +1,104 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A timing wheel used for expiring cached entries.
+ * <p>
+ * Each entry is scheduled in the slot of its deadline. The wheel is advanced by a single ticker,
+ * which hands the entries of the passed slots to a consumer. The consumer either discards an entry
+ * or re-schedules it with a new deadline, so entries that are updated frequently cost nothing
+ * until their original deadline has passed. Deadlines beyond the horizon of the wheel are
+ * placed in the last slot, and will be re-scheduled from there.
+ * <p>
+ * Entries may be scheduled concurrently by any thread. An entry that is added to a slot the ticker
+ * has just passed is re-slotted, so it is never delayed by a full turn of the wheel.
+ *
+ * @param <V> the type of the entries
+ */
+public class ExpiryWheel<V> {
+
+    final long tickMillis;
+    final int mask;
+    final Queue<V>[] slots;
+    volatile long currentTick;
+
+    /**
+     * Constructor
+     * @param horizonMillis the max time ahead that deadlines are expected to be scheduled
+     * @param tickMillis the duration of a slot
+     * @param now the current time
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiryWheel(long horizonMillis, long tickMillis, long now) {
+        int size = Integer.highestOneBit((int)Math.min(horizonMillis / tickMillis + 2, 1 << 30) - 1) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.slots = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedules the entry with the given deadline
+     * @param entry the entry
+     * @param deadline the deadline
+     */
+    public void schedule(V entry, long deadline) {
+        while (true) {
+            long tick = currentTick;
+            long t = Math.max(deadline / tickMillis, tick + 1);
+            t = Math.min(t, tick + slots.length - 1);
+            Queue<V> slot = slots[(int)(t & mask)];
+            slot.add(entry);
+
+            // If the ticker has advanced to the slot meanwhile, it may have been drained before the entry
+            // was added, in which case the entry would sit there for a full turn of the wheel.
+            // Unless the ticker got hold of it anyway, take the entry back and re-slot it
+            if (currentTick < t || !slot.remove(entry)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Advances the wheel to the given time, and hands the entries of the passed slots to the consumer.
+     * Must only be called by a single thread
+     * @param now the current time
+     * @param consumer the consumer of the entries whose deadline has passed
+     * @return the number of entries handed to the consumer
+     */
+    public int advance(long now, Consumer<V> consumer) {
+        long target = now / tickMillis;
+        int count = 0;
+        while (currentTick < target) {
+            long tick = currentTick + 1;
+            currentTick = tick;
+            Queue<V> slot = slots[(int)(tick & mask)];
+            V entry;
+            while ((entry = slot.poll()) != null) {
+                consumer.accept(entry);
+                count++;
+            }
+        }
+        return count;
+    }
+}
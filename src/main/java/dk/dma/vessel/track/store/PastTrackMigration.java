@@ -0,0 +1,298 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import com.google.common.collect.Lists;
+import dk.dma.vessel.track.model.PastTrackPos;
+import dk.dma.vessel.track.model.PastTrackSegment;
+import dk.dma.vessel.track.model.VesselTarget;
+import org.hibernate.SessionFactory;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Only used by master instances:<br>
+ * Migrates the past track history of the {@code past_track_pos} entity table into the
+ * day tables of the {@linkplain PastTrackPartitions}.
+ * <p>
+ * The migration runs in the background after startup, a batch of vessels at a time. The rows of a batch
+ * are deleted in the same transaction as their segments are written, so an interrupted migration
+ * resumes where it left off. Rows older than {@code pastTrackExpire} are deleted without being migrated.
+ * The rows that are still referenced as the last past track position of a vessel target by the former
+ * foreign key column of the {@code vessel_target} table are left in place.
+ * <p>
+ * Dropping that foreign key column is an explicit step, enabled by {@code pastTrackMigrateLastPos}. It runs
+ * once during startup, before the {@linkplain TargetStore} loads or saves any targets: the referenced positions
+ * are first copied into the past track columns of the vessel targets, and then the foreign key and column are
+ * dropped, so the referenced rows are migrated as well.
+ */
+@Service
+public class PastTrackMigration {
+
+    static final Logger LOG = LoggerFactory.getLogger(PastTrackMigration.class);
+
+    /** The number of vessels migrated per transaction */
+    static final int VESSEL_BATCH_SIZE = 100;
+
+    @Resource
+    EntityManager em;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    PastTrackPartitions partitions;
+
+    @Value("${slave:false}")
+    boolean slave;
+
+    @Value("${pastTrackExpire}")
+    String pastTrackExpire;
+
+    @Value("${dbBatchSize:1000}")
+    int batchSize;
+
+    @Value("${pastTrackMigrateLastPos:false}")
+    boolean migrateLastPos;
+
+    TransactionTemplate transaction;
+    String targetTable;
+    String posTable;
+    String posIdCol;
+    String selectVesselsSql;
+    String selectPositionsSql;
+    String deletePositionsSql;
+
+    /**
+     * Resolves the SQL statements from the entity mappings, and starts the migration
+     */
+    @PostConstruct
+    public void init() {
+        if (slave) {
+            return;
+        }
+
+        SessionFactory sessionFactory = em.getEntityManagerFactory().unwrap(SessionFactory.class);
+        AbstractEntityPersister target = (AbstractEntityPersister)sessionFactory.getClassMetadata(VesselTarget.class);
+        AbstractEntityPersister pos = (AbstractEntityPersister)sessionFactory.getClassMetadata(PastTrackPos.class);
+        targetTable = target.getTableName();
+        posTable = pos.getTableName();
+        posIdCol = pos.getIdentifierColumnNames()[0];
+        String mmsiCol = column(pos, "vesselTarget");
+
+        selectVesselsSql = String.format(
+                "SELECT DISTINCT %s FROM %s WHERE %s > ? ORDER BY %s LIMIT %d",
+                mmsiCol, posTable, mmsiCol, mmsiCol, VESSEL_BATCH_SIZE);
+
+        selectPositionsSql = String.format(
+                "SELECT p.%s, p.%s, p.%s, p.%s, p.%s, p.%s, p.%s FROM %s p WHERE p.%s IN (%%s)%%s ORDER BY p.%s, p.%s",
+                mmsiCol, posIdCol, column(pos, "lat"), column(pos, "lon"), column(pos, "cog"), column(pos, "sog"),
+                column(pos, "time"), posTable, mmsiCol, mmsiCol, column(pos, "time"));
+
+        deletePositionsSql = String.format("DELETE FROM %s WHERE %s IN (%%s)", posTable, posIdCol);
+
+        transaction = new TransactionTemplate(transactionManager);
+
+        Map<String, String> references = lastPosReferences();
+        if (migrateLastPos) {
+            migrateLastPosReferences(target, pos, references);
+        } else if (!references.isEmpty()) {
+            LOG.info("Keeping the former last past track position columns " + references.values() + " of " +
+                    targetTable + ". Set pastTrackMigrateLastPos to move them to the past track columns");
+        }
+
+        Thread migration = new Thread(this::migrate, "past-track-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    /**
+     * Returns the column name of the given entity property
+     * @param persister the entity persister
+     * @param property the property
+     * @return the column name of the given entity property
+     */
+    private static String column(AbstractEntityPersister persister, String property) {
+        return persister.getPropertyColumnNames(property)[0];
+    }
+
+    /**
+     * Returns the foreign key columns of the vessel target table that reference the past track position table
+     * @return the foreign key columns by constraint name
+     */
+    Map<String, String> lastPosReferences() {
+        Map<String, String> references = new LinkedHashMap<>();
+        jdbcTemplate.query(
+                "SELECT CONSTRAINT_NAME, COLUMN_NAME FROM information_schema.KEY_COLUMN_USAGE " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND REFERENCED_TABLE_NAME = ?",
+                new Object[] { targetTable, posTable },
+                rs -> {
+                    references.put(rs.getString(1), rs.getString(2));
+                });
+        return references;
+    }
+
+    /**
+     * Copies the last past track positions referenced by the given foreign key columns into the
+     * past track columns of the vessel targets, and drops the foreign keys and columns
+     * @param target the vessel target persister
+     * @param pos the past track position persister
+     * @param references the foreign key columns by constraint name
+     */
+    private void migrateLastPosReferences(AbstractEntityPersister target, AbstractEntityPersister pos, Map<String, String> references) {
+        for (Map.Entry<String, String> reference : references.entrySet()) {
+            // Targets saved since the upgrade already hold their last position in the past track columns
+            String copySql = String.format(
+                    "UPDATE %s t JOIN %s p ON p.%s = t.%s SET t.%s = p.%s, t.%s = p.%s, t.%s = p.%s, t.%s = p.%s, t.%s = p.%s " +
+                    "WHERE t.%s IS NULL",
+                    targetTable, posTable, posIdCol, reference.getValue(),
+                    column(target, "pastTrackLat"), column(pos, "lat"),
+                    column(target, "pastTrackLon"), column(pos, "lon"),
+                    column(target, "pastTrackCog"), column(pos, "cog"),
+                    column(target, "pastTrackSog"), column(pos, "sog"),
+                    column(target, "pastTrackTime"), column(pos, "time"),
+                    column(target, "pastTrackTime"));
+            int copied = jdbcTemplate.update(copySql);
+            LOG.info("Copied " + copied + " last past track positions from " + posTable + " to " + targetTable);
+
+            String dropSql = String.format("ALTER TABLE %s DROP FOREIGN KEY %s, DROP COLUMN %s",
+                    targetTable, reference.getKey(), reference.getValue());
+            LOG.info("Dropping former last past track position reference: " + dropSql);
+            jdbcTemplate.execute(dropSql);
+        }
+    }
+
+    /**
+     * Returns a comma-separated list of the given number of JDBC placeholders
+     * @param count the number of placeholders
+     * @return the comma-separated placeholders
+     */
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    /**
+     * Migrates the past track positions of all vessels in the entity table
+     */
+    private void migrate() {
+        long t0 = System.currentTimeMillis();
+        long expiry = t0 - Duration.parse(pastTrackExpire).toMillis();
+        int[] counts = new int[2];
+        try {
+            // Leave out the last past track positions still referenced by the vessel targets
+            StringBuilder referenced = new StringBuilder();
+            for (String col : lastPosReferences().values()) {
+                referenced.append(String.format(" AND p.%s NOT IN (SELECT %s FROM %s WHERE %s IS NOT NULL)",
+                        posIdCol, col, targetTable, col));
+            }
+            String selectSql = String.format(selectPositionsSql, "%s", referenced);
+            int lastMmsi = Integer.MIN_VALUE;
+            List<Integer> mmsis;
+            while (!(mmsis = jdbcTemplate.queryForList(selectVesselsSql, Integer.class, lastMmsi)).isEmpty()) {
+                List<Integer> batch = mmsis;
+                int[] migrated = transaction.execute(status -> migrateVessels(selectSql, batch, expiry));
+                counts[0] += migrated[0];
+                counts[1] += migrated[1];
+                lastMmsi = mmsis.get(mmsis.size() - 1);
+            }
+            if (counts[1] > 0) {
+                LOG.info("Migrated " + counts[0] + " of " + counts[1] + " past track positions to the day tables in " +
+                        (System.currentTimeMillis() - t0) + " ms");
+            }
+        } catch (Exception e) {
+            LOG.error("Error migrating past track positions after " + counts[1] + " positions", e);
+        }
+    }
+
+    /**
+     * Migrates the past track positions of the given vessels to segments of the day tables,
+     * and deletes them from the entity table
+     * @param selectSql the query of the positions to migrate, with a placeholder for the MMSI list
+     * @param mmsis the MMSIs of the vessels
+     * @param expiry positions older than this time are deleted without being migrated
+     * @return the number of migrated and deleted positions
+     */
+    private int[] migrateVessels(String selectSql, List<Integer> mmsis, long expiry) {
+        List<Long> ids = new ArrayList<>();
+        Map<LocalDate, List<Object[]>> byDay = new LinkedHashMap<>();
+        int[] mmsi = { 0 };
+        PastTrackSegment[] segment = { null };
+        int[] migrated = { 0 };
+
+        // The positions are ordered by vessel and time, so each segment is built in one go
+        String sql = String.format(selectSql, placeholders(mmsis.size()));
+        jdbcTemplate.query(sql, mmsis.toArray(), rs -> {
+            ids.add(rs.getLong(2));
+            long time = rs.getTimestamp(7).getTime();
+            if (time < expiry) {
+                return;
+            }
+            long hourStart = PastTrackSegment.hourStart(time);
+            if (segment[0] == null || mmsi[0] != rs.getInt(1) || segment[0].getHourStart() != hourStart) {
+                addChunk(byDay, mmsi[0], segment[0]);
+                mmsi[0] = rs.getInt(1);
+                segment[0] = new PastTrackSegment(hourStart);
+            }
+            if (segment[0].append(new PastTrackPos(rs.getFloat(3), rs.getFloat(4), rs.getFloat(5), rs.getFloat(6), new Date(time)))) {
+                migrated[0]++;
+            }
+        });
+        addChunk(byDay, mmsi[0], segment[0]);
+
+        // The positions predate any segments already written for the hour
+        partitions.prependChunks(byDay);
+        for (List<Long> batch : Lists.partition(ids, batchSize)) {
+            jdbcTemplate.update(String.format(deletePositionsSql, placeholders(batch.size())), batch.toArray());
+        }
+        return new int[] { migrated[0], ids.size() };
+    }
+
+    /**
+     * Adds the chunk of the given segment to the rows to write
+     * @param byDay the rows to write, grouped by day
+     * @param mmsi the MMSI of the vessel
+     * @param segment the segment, or null
+     */
+    private static void addChunk(Map<LocalDate, List<Object[]>> byDay, int mmsi, PastTrackSegment segment) {
+        if (segment != null && segment.getPoints() > 0) {
+            long hourStart = segment.getHourStart();
+            byDay.computeIfAbsent(PastTrackPartitions.day(hourStart), d -> new ArrayList<>()).add(new Object[] {
+                    mmsi, PastTrackPartitions.hourOfDay(hourStart), segment.getPoints(), segment.toChunk()
+            });
+        }
+    }
+}
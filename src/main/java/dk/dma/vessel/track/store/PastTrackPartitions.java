@@ -0,0 +1,359 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import com.google.common.collect.Lists;
+import dk.dma.vessel.track.model.PastTrackSegment;
+import dk.dma.vessel.track.model.TrackBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+
+/**
+ * Stores the past track positions in per-day tables, named {@code past_track_seg_yyyyMMdd} by the UTC day.
+ * <p>
+ * Each row holds the compressed {@linkplain PastTrackSegment} of a vessel for an hour of the day.
+ * The tables are created on demand when segments are written, and expired past tracks
+ * are deleted by dropping whole tables. Queries only touch the tables of the requested period.
+ * The master creates the table of the current day ahead of time, so that slaves can derive
+ * its name rather than wait for their periodic refresh of the list of tables.
+ * <p>
+ * The last past track position of each vessel is kept with the vessel target. The positions of the
+ * former {@code past_track_pos} entity table are moved to the day tables by the {@linkplain PastTrackMigration}.
+ */
+@Service
+public class PastTrackPartitions {
+
+    static final Logger LOG = LoggerFactory.getLogger(PastTrackPartitions.class);
+
+    static final String TABLE_PREFIX = "past_track_seg_";
+    static final DateTimeFormatter TABLE_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    static final long DAY = 24 * PastTrackSegment.HOUR;
+
+    static final String CREATE_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS %s (" +
+            "  mmsi INT NOT NULL," +
+            "  hour_of_day TINYINT NOT NULL," +
+            "  points INT NOT NULL," +
+            "  data MEDIUMBLOB NOT NULL," +
+            "  PRIMARY KEY (mmsi, hour_of_day)" +
+            ") ENGINE=InnoDB";
+
+    /** Replaces the chunk previously written by this instance, i.e. the tail of the segment */
+    static final String UPSERT_SQL =
+            "INSERT INTO %s (mmsi, hour_of_day, points, data) VALUES (?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE " +
+            "  data = CONCAT(LEFT(data, LENGTH(data) - ?), VALUES(data))," +
+            "  points = points - ? + VALUES(points)";
+
+    static final String PREPEND_SQL =
+            "INSERT INTO %s (mmsi, hour_of_day, points, data) VALUES (?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE " +
+            "  data = CONCAT(VALUES(data), data)," +
+            "  points = points + VALUES(points)";
+
+    static final String QUERY_SQL =
+            "SELECT %d, mmsi, hour_of_day, data FROM %s WHERE mmsi IN (%s) AND hour_of_day >= ?";
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Value("${dbBatchSize:1000}")
+    int batchSize;
+
+    @Value("${slave:false}")
+    boolean slave;
+
+    /** The days that have a past track table */
+    final NavigableSet<LocalDate> days = new ConcurrentSkipListSet<>();
+
+    TransactionTemplate newTransaction;
+
+    /**
+     * Loads the list of existing day tables
+     */
+    @PostConstruct
+    public void init() {
+        newTransaction = new TransactionTemplate(transactionManager);
+        newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        refreshTables();
+        createTablesAhead();
+    }
+
+    /**
+     * Only used by master instances:<br>
+     * Periodically creates the tables of the current and the next day, if missing
+     */
+    @Scheduled(cron="0 50 * * * *")
+    public void createTablesAhead() {
+        if (slave) {
+            return;
+        }
+        LocalDate today = day(System.currentTimeMillis());
+        for (LocalDate day : new LocalDate[] { today, today.plusDays(1) }) {
+            if (!days.contains(day)) {
+                createTable(day);
+            }
+        }
+    }
+
+    /**
+     * Periodically loads the list of existing day tables.
+     * Slave instances rely on this to pick up the tables created by the master
+     */
+    @Scheduled(cron="5 */10 * * * *")
+    public void refreshTables() {
+        List<LocalDate> existing = new ArrayList<>();
+        for (String table : jdbcTemplate.queryForList("SHOW TABLES LIKE '" + TABLE_PREFIX + "%'", String.class)) {
+            String suffix = table.substring(TABLE_PREFIX.length());
+            if (suffix.matches("\\d{8}")) {
+                existing.add(LocalDate.parse(suffix, TABLE_SUFFIX));
+            }
+        }
+        days.addAll(existing);
+        days.retainAll(existing);
+    }
+
+    /**
+     * Returns the name of the table of the given day
+     * @param day the day
+     * @return the name of the table of the given day
+     */
+    static String tableName(LocalDate day) {
+        return TABLE_PREFIX + day.format(TABLE_SUFFIX);
+    }
+
+    /**
+     * Returns the UTC day of the given time
+     * @param time the time
+     * @return the UTC day of the given time
+     */
+    static LocalDate day(long time) {
+        return Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC).toLocalDate();
+    }
+
+    /**
+     * Returns the hour of the UTC day of the given time
+     * @param time the time
+     * @return the hour of the UTC day of the given time
+     */
+    static int hourOfDay(long time) {
+        return (int)(Math.floorMod(time, DAY) / PastTrackSegment.HOUR);
+    }
+
+    /**
+     * Writes the past track segment chunks of the given updates to the tables of their days,
+     * creating the tables as needed
+     * @param updates the updates with new past track positions
+     */
+    void writeSegments(List<VesselTargetWriter.TargetUpdate> updates) {
+        Map<LocalDate, List<Object[]>> byDay = new LinkedHashMap<>();
+        for (VesselTargetWriter.TargetUpdate u : updates) {
+            for (VesselTargetWriter.SegmentChunk c : u.chunks) {
+                long hourStart = c.segment.getHourStart();
+                byDay.computeIfAbsent(day(hourStart), d -> new ArrayList<>()).add(new Object[] {
+                        u.target.getMmsi(),
+                        hourOfDay(hourStart),
+                        c.points,
+                        c.chunk,
+                        c.segment.getCommittedLength(),
+                        c.segment.getCommittedPoints()
+                });
+            }
+        }
+        writeChunks(UPSERT_SQL, byDay);
+    }
+
+    /**
+     * Prepends the given chunks to the segments of the tables of their days, creating the tables as needed.
+     * <p>
+     * Used for positions that predate the segments. The chunks are prepended, so that the chunk
+     * this instance replaces on subsequent writes remains the tail of the segment.
+     *
+     * @param byDay the rows of MMSI, hour of day, number of positions and chunk, grouped by day
+     */
+    void prependChunks(Map<LocalDate, List<Object[]>> byDay) {
+        writeChunks(PREPEND_SQL, byDay);
+    }
+
+    /**
+     * Writes the given rows to the tables of their days, creating the tables as needed
+     * @param sqlFormat the SQL, formatted with the table name
+     * @param byDay the rows, grouped by day
+     */
+    private void writeChunks(String sqlFormat, Map<LocalDate, List<Object[]>> byDay) {
+        for (Map.Entry<LocalDate, List<Object[]>> e : byDay.entrySet()) {
+            if (!days.contains(e.getKey())) {
+                createTable(e.getKey());
+            }
+            String sql = String.format(sqlFormat, tableName(e.getKey()));
+            for (List<Object[]> batch : Lists.partition(e.getValue(), batchSize)) {
+                jdbcTemplate.batchUpdate(sql, batch);
+            }
+        }
+    }
+
+    /**
+     * Creates the table of the given day.
+     * DDL implicitly commits the current transaction in MySQL, so a separate transaction is used
+     * @param day the day
+     */
+    private void createTable(LocalDate day) {
+        String table = tableName(day);
+        newTransaction.execute(status -> {
+            jdbcTemplate.execute(String.format(CREATE_TABLE_SQL, table));
+            return null;
+        });
+        days.add(day);
+        LOG.info("Created past track table " + table);
+    }
+
+    /**
+     * Returns the past track positions of the given MMSI since the given time, in chronological order.
+     * Only the tables of the days in the period are queried, and the segments are decoded
+     * straight into the primitive arrays of the result
+     * @param mmsi the MMSI
+     * @param since the time of the oldest position
+     * @return the past track positions
+     */
+    public TrackBuffer query(int mmsi, long since) {
+        return query(Collections.singletonList(mmsi), since).getOrDefault(mmsi, new TrackBuffer(0));
+    }
+
+    /**
+     * Returns the past track positions of the given MMSIs since the given time, in chronological order.
+     * <p>
+     * The MMSIs are looked up in batches of {@code dbBatchSize}, each with a single query
+     * across the tables of the days in the period.
+     *
+     * @param mmsis the MMSIs
+     * @param since the time of the oldest position
+     * @return the past track positions of the MMSIs that have any
+     */
+    public Map<Integer, TrackBuffer> query(Collection<Integer> mmsis, long since) {
+        // Allow for time stamps slightly ahead of the clock
+        LocalDate first = day(since);
+        LocalDate today = day(System.currentTimeMillis());
+        NavigableSet<LocalDate> tableDays = new TreeSet<>(days.subSet(first, true, today.plusDays(1), true));
+
+        // The table of the current day is created ahead of time by the master
+        boolean derived = !today.isBefore(first) && tableDays.add(today);
+        try {
+            return query(mmsis, since, tableDays);
+        } catch (BadSqlGrammarException e) {
+            if (!derived) {
+                throw e;
+            }
+            // The master has not created the table yet
+            LOG.debug("Past track table " + tableName(today) + " not found");
+            tableDays.remove(today);
+            return query(mmsis, since, tableDays);
+        }
+    }
+
+    /**
+     * Returns the past track positions of the given MMSIs since the given time from the tables of the given days
+     * @param mmsis the MMSIs
+     * @param since the time of the oldest position
+     * @param tableDays the days of the tables to query
+     * @return the past track positions of the MMSIs that have any
+     */
+    private Map<Integer, TrackBuffer> query(Collection<Integer> mmsis, long since, NavigableSet<LocalDate> tableDays) {
+        Map<Integer, TrackBuffer> result = new HashMap<>();
+        LocalDate first = day(since);
+        if (tableDays.isEmpty() || mmsis.isEmpty()) {
+            return result;
+        }
+
+        for (List<Integer> batch : Lists.partition(new ArrayList<>(mmsis), batchSize)) {
+            // Only the segments from the hour of the since time are read
+            String in = String.join(", ", Collections.nCopies(batch.size(), "?"));
+            String sql = tableDays.stream()
+                    .map(d -> String.format(QUERY_SQL, dayStart(d), tableName(d), in))
+                    .collect(Collectors.joining(" UNION ALL ")) + " ORDER BY 2, 1, 3";
+            List<Object> args = new ArrayList<>(tableDays.size() * (batch.size() + 1));
+            for (LocalDate day : tableDays) {
+                args.addAll(batch);
+                args.add(day.equals(first) ? Math.floorMod(since, DAY) / PastTrackSegment.HOUR : 0);
+            }
+
+            jdbcTemplate.query(sql, args.toArray(), rs -> {
+                long hourStart = rs.getLong(1) + rs.getInt(3) * PastTrackSegment.HOUR;
+                TrackBuffer track = result.computeIfAbsent(rs.getInt(2), m -> new TrackBuffer());
+                PastTrackSegment.decode(rs.getBytes(4), hourStart, since, track);
+            });
+        }
+
+        // Chunks written by different instances may overlap
+        result.values().forEach(TrackBuffer::sort);
+        return result;
+    }
+
+    /**
+     * Returns the start of the given UTC day
+     * @param day the day
+     * @return the start of the given UTC day
+     */
+    static long dayStart(LocalDate day) {
+        return day.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Drops the tables of the days that ended before the given time
+     * @param expiry the expiry time
+     * @return the number of dropped tables
+     */
+    public int dropBefore(long expiry) {
+        int dropped = 0;
+        // The day of the expiry time is only partially expired
+        for (LocalDate day : new ArrayList<>(days.headSet(day(expiry), false))) {
+            String table = tableName(day);
+            jdbcTemplate.execute("DROP TABLE IF EXISTS " + table);
+            days.remove(day);
+            dropped++;
+            LOG.info("Dropped past track table " + table);
+        }
+        return dropped;
+    }
+}
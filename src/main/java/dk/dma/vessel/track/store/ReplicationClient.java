@@ -0,0 +1,165 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static dk.dma.vessel.track.store.ReplicationServer.FRAME_HEARTBEAT;
+import static dk.dma.vessel.track.store.ReplicationServer.FRAME_SNAPSHOT_END;
+import static dk.dma.vessel.track.store.ReplicationServer.FRAME_TARGET;
+import static dk.dma.vessel.track.store.ReplicationServer.MAX_FRAME_SIZE;
+
+/**
+ * Only used by slave instances:<br>
+ * Subscribes to the change stream of the master {@linkplain ReplicationServer} and applies
+ * the changes to the target store.
+ * <p>
+ * Upon (re-)connecting, the master sends a full snapshot, so any gap is closed. Whilst
+ * replicating, the target store skips the periodic synchronization with the database.
+ */
+@Service
+public class ReplicationClient {
+
+    static final Logger LOG = LoggerFactory.getLogger(ReplicationClient.class);
+
+    /** The master sends a heartbeat every second */
+    static final int READ_TIMEOUT = 10000;
+    static final int RECONNECT_DELAY = 5000;
+
+    @Value("${replicationMaster:}")
+    String master;
+
+    @Value("${slave:false}")
+    boolean slave;
+
+    @Autowired
+    TargetStore vesselStore;
+
+    Thread thread;
+    volatile Socket socket;
+    volatile boolean stopped;
+
+    /**
+     * Starts subscribing to the master change stream
+     */
+    @PostConstruct
+    public void init() {
+        if (!slave || StringUtils.isBlank(master)) {
+            return;
+        }
+
+        thread = new Thread(this::subscribe, "replication-client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops subscribing to the master change stream
+     */
+    @PreDestroy
+    public void destroy() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+            closeSocket();
+        }
+    }
+
+    /**
+     * Connects to the master and applies the change stream, reconnecting upon errors
+     */
+    private void subscribe() {
+        String[] hostPort = master.split(":");
+        InetSocketAddress address = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+
+        while (!stopped) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                s.connect(address, READ_TIMEOUT);
+                s.setSoTimeout(READ_TIMEOUT);
+                LOG.info("Subscribed to change stream of " + master);
+                applyStream(new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024)));
+            } catch (IOException e) {
+                if (!stopped) {
+                    LOG.warn("Change stream of " + master + " disconnected: " + e.getMessage());
+                }
+            } finally {
+                vesselStore.setReplicating(false);
+            }
+
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies the frames of the change stream until the stream is closed
+     * @param in the change stream
+     */
+    private void applyStream(DataInputStream in) throws IOException {
+        byte[] data = new byte[MAX_FRAME_SIZE];
+        int count = 0;
+        while (!stopped) {
+            int len = in.readInt();
+            if (len < 1 || len > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length " + len);
+            }
+            byte type = in.readByte();
+            in.readFully(data, 0, len - 1);
+
+            switch (type) {
+                case FRAME_TARGET:
+                    vesselStore.applyReplicated(ByteBuffer.wrap(data, 0, len - 1));
+                    count++;
+                    break;
+                case FRAME_SNAPSHOT_END:
+                    LOG.info("Received snapshot of " + count + " targets from " + master);
+                    vesselStore.setReplicating(true);
+                    break;
+                case FRAME_HEARTBEAT:
+                    break;
+                default:
+                    throw new IOException("Invalid frame type " + type);
+            }
+        }
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
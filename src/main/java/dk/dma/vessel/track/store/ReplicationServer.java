@@ -0,0 +1,291 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import dk.dma.vessel.track.model.VesselTarget;
+import dk.dma.vessel.track.model.VesselTargetCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Only used by master instances:<br>
+ * Publishes a stream of vessel target changes to subscribing slave instances over TCP.
+ * <p>
+ * A new subscriber is first sent a full snapshot of the target cache, followed by the
+ * {@linkplain VesselTargetCodec} delta records of all subsequent updates. Each frame
+ * consists of its length, a frame type and the record.
+ * <p>
+ * The deltas are queued per subscriber. Whilst the snapshot is being sent, the queue is unbounded,
+ * since the deltas that pile up meanwhile only depend on how long the snapshot takes to send.
+ * Once the snapshot has been sent, the subscriber may fall at most {@code replicationQueueSize}
+ * deltas behind the backlog of the snapshot, and at most {@code replicationQueueSize} deltas
+ * behind once the backlog has been drained. A subscriber that falls further behind is disconnected,
+ * and will resync from a new snapshot upon reconnecting.
+ * <p>
+ * Targets that are reloaded in bulk, e.g. when the master reconciles its local snapshot with the
+ * database, are not published as deltas. All subscribers are disconnected instead, so that they
+ * resync from a new snapshot.
+ * <p>
+ * The stream is not authenticated, so by default the server only listens on the loopback interface.
+ */
+@Service
+public class ReplicationServer implements TargetListener {
+
+    static final Logger LOG = LoggerFactory.getLogger(ReplicationServer.class);
+
+    static final byte FRAME_HEARTBEAT = 0;
+    static final byte FRAME_TARGET = 1;
+    static final byte FRAME_SNAPSHOT_END = 2;
+
+    /** The max size of a frame */
+    static final int MAX_FRAME_SIZE = VesselTargetCodec.MAX_RECORD_SIZE + 5;
+
+    @Value("${replicationPort:0}")
+    int port;
+
+    @Value("${replicationBindAddress:127.0.0.1}")
+    String bindAddress;
+
+    @Value("${replicationQueueSize:10000}")
+    int queueSize;
+
+    @Value("${slave:false}")
+    boolean slave;
+
+    @Autowired
+    TargetStore vesselStore;
+
+    ServerSocket serverSocket;
+    final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_FRAME_SIZE));
+
+    /**
+     * Starts listening for subscribers
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        if (slave || port <= 0) {
+            return;
+        }
+
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+        vesselStore.addListener(this);
+
+        Thread acceptor = new Thread(this::acceptSubscribers, "replication-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("Publishing target changes on " + bindAddress + ":" + port);
+    }
+
+    /**
+     * Stops the server and disconnects all subscribers
+     */
+    @PreDestroy
+    public void destroy() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {
+            }
+            subscribers.forEach(Subscriber::close);
+        }
+    }
+
+    /**
+     * Accepts new subscribers until the server socket is closed
+     */
+    private void acceptSubscribers() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Subscriber subscriber = new Subscriber(socket);
+                // Register before the snapshot is sent, so that no updates are missed
+                subscribers.add(subscriber);
+                subscriber.start();
+                LOG.info("Replication subscriber connected from " + socket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOG.error("Error accepting replication subscriber", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void targetUpdated(VesselTarget target, int updated) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+
+        byte[] frame = encodeFrame(scratch.get(), target, updated);
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.offer(frame)) {
+                LOG.warn("Replication subscriber " + subscriber.getName() + " fell behind. Disconnecting");
+                subscriber.close();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The bulk changes are not published as deltas, so all subscribers are disconnected to make them resync
+     */
+    @Override
+    public void targetsReloaded() {
+        for (Subscriber subscriber : subscribers) {
+            LOG.info("Targets reloaded. Disconnecting replication subscriber " + subscriber.getName() + " to resync");
+            subscriber.close();
+        }
+    }
+
+    /**
+     * Encodes the given fields of the target as a frame.
+     * Must be called whilst synchronized on the target
+     * @param buf the scratch buffer to use
+     * @param target the target
+     * @param mask the fields to encode
+     * @return the encoded frame
+     */
+    static byte[] encodeFrame(ByteBuffer buf, VesselTarget target, int mask) {
+        buf.clear();
+        buf.putInt(0);
+        buf.put(FRAME_TARGET);
+        VesselTargetCodec.encode(buf, target, mask);
+        buf.putInt(0, buf.position() - 4);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /**
+     * Streams the snapshot and the subsequent updates to a single subscriber
+     */
+    class Subscriber extends Thread {
+
+        final Socket socket;
+        final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+
+        /** The max number of queued deltas. Unbounded until the snapshot has been sent */
+        volatile int limit = Integer.MAX_VALUE;
+
+        /**
+         * Constructor
+         * @param socket the subscriber socket
+         */
+        Subscriber(Socket socket) {
+            super("replication-" + socket.getRemoteSocketAddress());
+            this.socket = socket;
+            setDaemon(true);
+        }
+
+        /**
+         * Queues the given delta frame, unless the subscriber has fallen too far behind
+         * @param frame the frame to queue
+         * @return if the frame was queued
+         */
+        boolean offer(byte[] frame) {
+            return queue.size() < limit && queue.offer(frame);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            try (OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024)) {
+                // Send the snapshot
+                ByteBuffer buf = ByteBuffer.allocate(MAX_FRAME_SIZE);
+                int count = 0;
+                for (VesselTarget t : vesselStore.list()) {
+                    byte[] frame;
+                    synchronized (t) {
+                        frame = encodeFrame(buf, t, VesselTargetCodec.ALL);
+                    }
+                    out.write(frame);
+                    count++;
+                }
+                writeControlFrame(out, FRAME_SNAPSHOT_END);
+                out.flush();
+
+                // The deltas queued whilst sending the snapshot must be drained before the regular bound applies
+                int backlog = queue.size();
+                limit = backlog + queueSize;
+                LOG.info("Sent snapshot of " + count + " targets to " + getName() + ", " + backlog + " deltas queued");
+
+                // Stream the updates, and flush whenever the queue is drained
+                while (!socket.isClosed()) {
+                    byte[] frame = queue.poll(1, TimeUnit.SECONDS);
+                    if (frame == null) {
+                        writeControlFrame(out, FRAME_HEARTBEAT);
+                    } else {
+                        out.write(frame);
+                    }
+                    if (queue.isEmpty()) {
+                        out.flush();
+                        limit = queueSize;
+                    }
+                }
+            } catch (Exception e) {
+                if (!socket.isClosed()) {
+                    LOG.warn("Replication subscriber " + getName() + " disconnected: " + e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Writes a frame without a record
+         * @param out the output stream
+         * @param type the frame type
+         */
+        private void writeControlFrame(OutputStream out, byte type) throws IOException {
+            out.write(new byte[] { 0, 0, 0, 1, type });
+        }
+
+        /**
+         * Disconnects the subscriber
+         */
+        void close() {
+            subscribers.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
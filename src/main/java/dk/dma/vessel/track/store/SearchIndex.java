@@ -0,0 +1,244 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import dk.dma.enav.model.Country;
+import dk.dma.vessel.track.model.VesselTarget;
+import dk.dma.vessel.track.model.VesselTargetCodec;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sorted prefix indexes of the MMSI, name, call sign and IMO number of the vessel targets,
+ * along with the set of countries of the targets, used for auto-completing search filters.
+ * <p>
+ * The keys of the name and call sign indexes are lower-cased, and all keys are suffixed with the
+ * MMSI of the target, so that each target has its own entry. A prefix search is thus a range scan
+ * of the sorted keys. The keys indexed for each target are kept, so that they can be removed
+ * again when the target is updated or removed.
+ */
+@Service
+public class SearchIndex implements TargetListener {
+
+    static final Logger LOG = LoggerFactory.getLogger(SearchIndex.class);
+
+    static final int INDEXED_FIELDS = VesselTargetCodec.NAME | VesselTargetCodec.CALLSIGN |
+            VesselTargetCodec.IMO_NO | VesselTargetCodec.COUNTRY;
+
+    static final int MMSI = 0;
+    static final int NAME = 1;
+    static final int CALLSIGN = 2;
+    static final int IMO = 3;
+    static final int COUNTRY = 4;
+
+    @Autowired
+    TargetStore targetStore;
+
+    // The sorted keys of the MMSI, name, call sign and IMO indexes, mapped to the values to display
+    final List<ConcurrentNavigableMap<String, String>> indexes = new ArrayList<>();
+
+    // The number of targets per country, and the active countries by lower-cased name
+    final Map<String, Integer> countryCounts = new ConcurrentHashMap<>();
+    final ConcurrentNavigableMap<String, Country> countries = new ConcurrentSkipListMap<>();
+
+    // The keys indexed for each target by MMSI
+    final Map<Integer, String[]> indexedKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the index with the target store and indexes the current targets
+     */
+    @PostConstruct
+    public void init() {
+        for (int i = MMSI; i <= IMO; i++) {
+            indexes.add(new ConcurrentSkipListMap<>());
+        }
+        targetStore.addListener(this);
+        targetsReloaded();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void targetUpdated(VesselTarget target, int updated) {
+        if ((updated & INDEXED_FIELDS) != 0 || !indexedKeys.containsKey(target.getMmsi())) {
+            index(target);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void targetRemoved(VesselTarget target) {
+        update(target.getMmsi(), null, null);
+    }
+
+    /**
+     * Re-indexes all targets, and removes the targets that are no longer in the store
+     */
+    @Override
+    public void targetsReloaded() {
+        long t0 = System.currentTimeMillis();
+        for (VesselTarget t : targetStore.list()) {
+            synchronized (t) {
+                index(t);
+            }
+        }
+        for (Integer mmsi : indexedKeys.keySet()) {
+            VesselTarget t = targetStore.get(mmsi);
+            if (t == null) {
+                update(mmsi, null, null);
+            }
+        }
+        LOG.info("Indexed search keys in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Indexes the current keys of the target.
+     * Must be called whilst synchronized on the target
+     * @param target the target
+     */
+    private void index(VesselTarget target) {
+        String suffix = "\0" + target.getMmsi();
+        String[] keys = new String[COUNTRY + 1];
+        String[] values = new String[COUNTRY + 1];
+        keys[MMSI] = values[MMSI] = String.valueOf(target.getMmsi());
+        if (StringUtils.isNotBlank(target.getName())) {
+            keys[NAME] = target.getName().toLowerCase() + suffix;
+            values[NAME] = target.getName();
+        }
+        if (StringUtils.isNotBlank(target.getCallsign())) {
+            keys[CALLSIGN] = target.getCallsign().toLowerCase() + suffix;
+            values[CALLSIGN] = target.getCallsign();
+        }
+        if (target.getImoNo() != null) {
+            values[IMO] = String.valueOf(target.getImoNo());
+            keys[IMO] = values[IMO] + suffix;
+        }
+        if (StringUtils.isNotBlank(target.getCountry())) {
+            keys[COUNTRY] = target.getCountry();
+        }
+        update(target.getMmsi(), keys, values);
+    }
+
+    /**
+     * Replaces the indexed keys of the target with the given MMSI.
+     * Must be called whilst synchronized on the target
+     * @param mmsi the MMSI of the target
+     * @param keys the new keys, or null to remove the target from the index
+     * @param values the values to display for the new keys, or null to remove the target from the index
+     */
+    private void update(int mmsi, String[] keys, String[] values) {
+        String[] oldKeys = keys != null ? indexedKeys.put(mmsi, keys) : indexedKeys.remove(mmsi);
+        for (int i = MMSI; i <= COUNTRY; i++) {
+            String oldKey = oldKeys != null ? oldKeys[i] : null;
+            String key = keys != null ? keys[i] : null;
+            if (i == COUNTRY) {
+                if (oldKey == null || !oldKey.equals(key)) {
+                    countCountry(oldKey, -1);
+                    countCountry(key, 1);
+                }
+                continue;
+            }
+            if (oldKey != null && !oldKey.equals(key)) {
+                indexes.get(i).remove(oldKey);
+            }
+            // The value may have changed case even if the key has not
+            if (key != null) {
+                indexes.get(i).put(key, values[i]);
+            }
+        }
+    }
+
+    /**
+     * Adjusts the number of targets of the given country, and updates the active countries
+     * @param code the country code, or null
+     * @param delta the change of the number of targets
+     */
+    private void countCountry(String code, int delta) {
+        if (code == null) {
+            return;
+        }
+        countryCounts.compute(code, (c, count) -> {
+            int newCount = (count != null ? count : 0) + delta;
+            Country country = Country.getByCode(c);
+            if (country != null && country.getName() != null) {
+                if (newCount > 0 && (count == null || count <= 0)) {
+                    countries.put(country.getName().toLowerCase(), country);
+                } else if (newCount <= 0) {
+                    countries.remove(country.getName().toLowerCase());
+                }
+            }
+            return newCount > 0 ? newCount : null;
+        });
+    }
+
+    /**
+     * Returns the values of the given key starting with the given term, ignoring case for names and call signs
+     * @param key the key, i.e. "mmsi", "name", "callsign" or "imo"
+     * @param term the search term
+     * @param maxHits the maximum number of values to return
+     * @return the matching values
+     */
+    public List<String> search(String key, String term, int maxHits) {
+        List<String> result = new ArrayList<>();
+        int index;
+        switch (key) {
+            case "mmsi":        index = MMSI; break;
+            case "name":        index = NAME; break;
+            case "callsign":    index = CALLSIGN; break;
+            case "imo":         index = IMO; break;
+            default:            return result;
+        }
+        String prefix = term.toLowerCase();
+        for (Map.Entry<String, String> e : indexes.get(index).tailMap(prefix).entrySet()) {
+            if (result.size() >= maxHits || !e.getKey().startsWith(prefix)) {
+                break;
+            }
+            result.add(e.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the countries of the targets whose name starts with the given term, ignoring case
+     * @param term the search term
+     * @param maxHits the maximum number of countries to return
+     * @return the matching countries
+     */
+    public List<Country> searchCountries(String term, int maxHits) {
+        List<Country> result = new ArrayList<>();
+        String prefix = term.toLowerCase();
+        for (Map.Entry<String, Country> e : countries.tailMap(prefix).entrySet()) {
+            if (result.size() >= maxHits || !e.getKey().startsWith(prefix)) {
+                break;
+            }
+            result.add(e.getValue());
+        }
+        return result;
+    }
+}
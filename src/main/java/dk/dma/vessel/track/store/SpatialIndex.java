@@ -0,0 +1,282 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import dk.dma.vessel.track.model.VesselTarget;
+import dk.dma.vessel.track.model.VesselTargetCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A grid index of the positions of the vessel targets.
+ * <p>
+ * The globe is divided into cells of {@code spatialIndexCellSize} degrees, each holding the set of
+ * targets positioned within it. The index is updated by the {@linkplain TargetStore} as the targets move,
+ * and answers bounds queries by only visiting the cells that overlap the bounds.
+ * <p>
+ * The cell of a target is kept in the target itself, and is only changed whilst synchronized on the target.
+ */
+@Service
+public class SpatialIndex implements TargetListener {
+
+    static final Logger LOG = LoggerFactory.getLogger(SpatialIndex.class);
+
+    @Value("${spatialIndexCellSize:0.5}")
+    double cellSize;
+
+    @Autowired
+    TargetStore targetStore;
+
+    int rows;
+    int cols;
+    AtomicReferenceArray<Set<VesselTarget>> cells;
+
+    /**
+     * Registers the index with the target store and indexes the current targets
+     */
+    @PostConstruct
+    public void init() {
+        rows = (int)Math.ceil(180.0 / cellSize);
+        cols = (int)Math.ceil(360.0 / cellSize);
+        cells = new AtomicReferenceArray<>(rows * cols);
+        targetStore.addListener(this);
+        targetsReloaded();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void targetUpdated(VesselTarget target, int updated) {
+        if ((updated & (VesselTargetCodec.LAT | VesselTargetCodec.LON)) != 0) {
+            index(target);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void targetRemoved(VesselTarget target) {
+        move(target, -1);
+    }
+
+    /**
+     * Re-indexes all targets, and removes the targets that are no longer in the store
+     */
+    @Override
+    public void targetsReloaded() {
+        long t0 = System.currentTimeMillis();
+        for (VesselTarget t : targetStore.list()) {
+            synchronized (t) {
+                index(t);
+            }
+        }
+        for (int cell = 0; cell < cells.length(); cell++) {
+            Set<VesselTarget> targets = cells.get(cell);
+            if (targets != null) {
+                for (VesselTarget t : targets) {
+                    if (targetStore.get(t.getMmsi()) != t) {
+                        synchronized (t) {
+                            move(t, -1);
+                        }
+                    }
+                }
+            }
+        }
+        LOG.info("Indexed targets in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Moves the target to the cell of its current position.
+     * Must be called whilst synchronized on the target
+     * @param target the target
+     */
+    private void index(VesselTarget target) {
+        move(target, target.isDefined(VesselTargetCodec.LAT | VesselTargetCodec.LON)
+                ? cell(target.getLatValue(), target.getLonValue())
+                : -1);
+    }
+
+    /**
+     * Moves the target to the given cell.
+     * Must be called whilst synchronized on the target
+     * @param target the target
+     * @param cell the new cell, or -1 to remove the target from the index
+     */
+    private void move(VesselTarget target, int cell) {
+        int oldCell = target.getGridCell();
+        if (oldCell == cell) {
+            return;
+        }
+        if (oldCell >= 0) {
+            cells.get(oldCell).remove(target);
+        }
+        if (cell >= 0) {
+            Set<VesselTarget> targets = cells.get(cell);
+            if (targets == null) {
+                cells.compareAndSet(cell, null, ConcurrentHashMap.newKeySet());
+                targets = cells.get(cell);
+            }
+            targets.add(target);
+        }
+        target.setGridCell(cell);
+    }
+
+    /**
+     * Returns the targets within the given OpenLayers bounds.
+     * <p>
+     * The way OpenLayers define bounds, the left longitude is ALWAYS smaller than
+     * the right longitude. So if the bounds cross the date line, the left longitude may
+     * be less than -180 or the right longitude greater than 180 degrees.
+     *
+     * @param top the top latitude
+     * @param left the left longitude
+     * @param bottom the bottom latitude
+     * @param right the right longitude
+     * @return the targets within the given bounds
+     */
+    public List<VesselTarget> query(double top, double left, double bottom, double right) {
+        List<VesselTarget> result = new ArrayList<>();
+        if (top < bottom || right < left) {
+            return result;
+        }
+
+        // Split bounds that cross the date line into two longitude ranges
+        double l, r, l2 = 0, r2 = -1;
+        if (right - left >= 360) {
+            l = -180;
+            r = 180;
+        } else {
+            l = normalizeLongitude(left);
+            r = l + (right - left);
+            if (r > 180) {
+                l2 = -180;
+                r2 = r - 360;
+                r = 180;
+            }
+        }
+
+        // A target moving between cells during the query may be visited twice
+        Set<VesselTarget> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int row = row(bottom); row <= row(top); row++) {
+            collect(row, l, r, top, bottom, visited, result);
+            if (r2 >= l2) {
+                collect(row, l2, r2, top, bottom, visited, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns if the target is within the given OpenLayers bounds, which may cross the date line
+     * @param target the target
+     * @param top the top latitude
+     * @param left the left longitude
+     * @param bottom the bottom latitude
+     * @param right the right longitude
+     * @return if the target is within the given bounds
+     */
+    public static boolean contains(VesselTarget target, double top, double left, double bottom, double right) {
+        if (!target.isDefined(VesselTargetCodec.LAT | VesselTargetCodec.LON)) {
+            return false;
+        }
+        float lat = target.getLatValue(), lon = target.getLonValue();
+        if (lat > top || lat < bottom) {
+            return false;
+        }
+        double dLon = lon - normalizeLongitude(left);
+        return right - left >= 360 || (dLon < 0 ? dLon + 360 : dLon) <= right - left;
+    }
+
+    /**
+     * Returns the fraction of the surface of the globe in a latitude/longitude projection,
+     * covered by the given OpenLayers bounds
+     * @param top the top latitude
+     * @param left the left longitude
+     * @param bottom the bottom latitude
+     * @param right the right longitude
+     * @return the fraction of the globe covered by the bounds
+     */
+    public static double coverage(double top, double left, double bottom, double right) {
+        double latSpan = Math.max(0, Math.min(top, 90) - Math.max(bottom, -90));
+        double lonSpan = Math.max(0, Math.min(right - left, 360));
+        return latSpan * lonSpan / (180.0 * 360.0);
+    }
+
+    /**
+     * Collects the targets of the given row and longitude range that are within the bounds
+     */
+    private void collect(int row, double left, double right, double top, double bottom,
+                         Set<VesselTarget> visited, List<VesselTarget> result) {
+        for (int col = col(left); col <= col(right); col++) {
+            Set<VesselTarget> targets = cells.get(row * cols + col);
+            if (targets == null) {
+                continue;
+            }
+            for (VesselTarget t : targets) {
+                if (!t.isDefined(VesselTargetCodec.LAT | VesselTargetCodec.LON)) {
+                    continue;
+                }
+                float lat = t.getLatValue(), lon = t.getLonValue();
+                if (lat <= top && lat >= bottom && lon >= left && lon <= right && visited.add(t)) {
+                    result.add(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cell of the given position
+     * @param lat the latitude
+     * @param lon the longitude
+     * @return the cell of the given position
+     */
+    int cell(double lat, double lon) {
+        return row(lat) * cols + col(normalizeLongitude(lon));
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(rows - 1, (int)Math.floor((lat + 90) / cellSize)));
+    }
+
+    private int col(double lon) {
+        return Math.max(0, Math.min(cols - 1, (int)Math.floor((lon + 180) / cellSize)));
+    }
+
+    /**
+     * Normalizes the longitude to the range [-180, 180]
+     * @param lon the longitude
+     * @return the normalized longitude
+     */
+    static double normalizeLongitude(double lon) {
+        if (lon >= -180 && lon <= 180) {
+            return lon;
+        }
+        return ((lon + 180) % 360 + 360) % 360 - 180;
+    }
+}
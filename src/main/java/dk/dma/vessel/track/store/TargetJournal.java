@@ -0,0 +1,328 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import dk.dma.vessel.track.model.VesselTarget;
+import dk.dma.vessel.track.model.VesselTargetCodec;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Write-ahead journal of the vessel target updates merged since the last database flush.
+ * <p>
+ * Each thread that merges packets appends {@linkplain VesselTargetCodec} delta records to its
+ * own memory-mapped segment files, so appends are not contended. The segments are grouped in
+ * epochs. The persistence process rolls the epoch before it drains the changed targets, and once
+ * the changes have been committed, the segments of the previous epochs are deleted. Appending an
+ * update and queueing its target is atomic with respect to rolling the epoch, so every update of a
+ * deleted segment is part of the committed changes.
+ * <p>
+ * Appended records survive a crash of the process as soon as they are written to the mapped
+ * buffers. The buffers are forced to disk in groups at a fixed interval, which bounds the data
+ * that may be lost if the host itself fails.
+ */
+@Service
+public class TargetJournal {
+
+    static final Logger LOG = LoggerFactory.getLogger(TargetJournal.class);
+
+    static final Pattern SEGMENT_NAME = Pattern.compile("journal-(\\d+)-(\\d+)-(\\d+)\\.log");
+
+    @Value("${journalDir:}")
+    String journalDir;
+
+    @Value("${journalSegmentSize:16777216}")
+    int segmentSize;
+
+    @Value("${slave:false}")
+    boolean slave;
+
+    Path dir;
+    volatile long epoch;
+    final ReadWriteLock epochLock = new ReentrantReadWriteLock();
+    final AtomicInteger writerIds = new AtomicInteger();
+    final List<Writer> writers = new CopyOnWriteArrayList<>();
+    final ThreadLocal<Writer> writer = ThreadLocal.withInitial(this::newWriter);
+
+    /**
+     * Resolves the journal directory and the epoch to start from
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        if (slave || StringUtils.isBlank(journalDir)) {
+            return;
+        }
+        dir = Paths.get(journalDir);
+        Files.createDirectories(dir);
+
+        // Start a new epoch after the ones left over from the previous run
+        epoch = segments().stream().mapToLong(s -> s.epoch).max().orElse(0L) + 1;
+        LOG.info("Journaling target updates to " + dir.toAbsolutePath() + " from epoch " + epoch);
+    }
+
+    /**
+     * Forces all segments to disk when shutting down
+     */
+    @PreDestroy
+    public void destroy() {
+        sync();
+    }
+
+    /**
+     * Returns if the journal is enabled
+     * @return if the journal is enabled
+     */
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * Returns the lock to hold whilst appending an update and queueing its target for persistence,
+     * so that the epoch is not rolled in between
+     * @return the lock to hold whilst appending an update and queueing its target
+     */
+    public Lock appendLock() {
+        return epochLock.readLock();
+    }
+
+    /**
+     * Appends a delta record with the given fields of the target to the journal of the current thread.
+     * <p>
+     * Must be called whilst synchronized on the target, so that the record is ordered with respect to
+     * the persistence process snapshotting the target, and whilst holding the {@linkplain #appendLock()}.
+     *
+     * @param target the target
+     * @param mask the fields to append
+     */
+    public void append(VesselTarget target, int mask) {
+        if (dir == null) {
+            return;
+        }
+        try {
+            writer.get().append(target, mask);
+        } catch (IOException e) {
+            LOG.error("Error appending to journal", e);
+        }
+    }
+
+    /**
+     * Starts a new epoch. Updates appended from now on belong to the new epoch.
+     * Waits for the updates being appended under the {@linkplain #appendLock()} to be queued.
+     * @return the previous epoch
+     */
+    public long roll() {
+        epochLock.writeLock().lock();
+        try {
+            return epoch++;
+        } finally {
+            epochLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments of the given epoch and earlier epochs,
+     * once the updates have been committed to the database.
+     * @param committedEpoch the last committed epoch
+     */
+    public void truncate(long committedEpoch) {
+        if (dir == null) {
+            return;
+        }
+        for (Segment s : segments()) {
+            if (s.epoch <= committedEpoch) {
+                try {
+                    Files.deleteIfExists(s.file);
+                } catch (IOException e) {
+                    LOG.warn("Failed deleting journal segment " + s.file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Group commit: periodically force the appended records to disk
+     */
+    @Scheduled(fixedDelayString = "${journalSyncInterval:1000}")
+    public void sync() {
+        writers.forEach(Writer::force);
+    }
+
+    /**
+     * Replays all journal segments in the order they were written
+     * @param consumer receives a buffer positioned at each record
+     * @return the number of replayed records
+     */
+    public int replay(Consumer<ByteBuffer> consumer) throws IOException {
+        if (dir == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Segment s : segments()) {
+            try (FileChannel channel = FileChannel.open(s.file, StandardOpenOption.READ)) {
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while (buf.remaining() >= 4) {
+                    int len = buf.getInt();
+                    if (len <= 0 || len > buf.remaining()) {
+                        break;
+                    }
+                    ByteBuffer record = buf.slice();
+                    record.limit(len);
+                    consumer.accept(record);
+                    buf.position(buf.position() + len);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the segments of the journal directory sorted by epoch, writer and sequence number
+     * @return the sorted segments
+     */
+    private List<Segment> segments() {
+        List<Segment> result = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Matcher m = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (m.matches()) {
+                    result.add(new Segment(file, Long.parseLong(m.group(1)), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3))));
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Error listing journal segments in " + dir, e);
+        }
+        result.sort(Comparator.<Segment>comparingLong(s -> s.epoch)
+                .thenComparingInt(s -> s.writer)
+                .thenComparingInt(s -> s.seq));
+        return result;
+    }
+
+    /**
+     * Creates a writer for the current thread
+     * @return the new writer
+     */
+    private Writer newWriter() {
+        Writer w = new Writer(writerIds.incrementAndGet());
+        writers.add(w);
+        return w;
+    }
+
+    /**
+     * A journal segment file
+     */
+    static class Segment {
+        final Path file;
+        final long epoch;
+        final int writer;
+        final int seq;
+
+        Segment(Path file, long epoch, int writer, int seq) {
+            this.file = file;
+            this.epoch = epoch;
+            this.writer = writer;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Appends records to the segments of a single thread
+     */
+    class Writer {
+        final int id;
+        long segmentEpoch = -1;
+        int seq;
+        volatile MappedByteBuffer buf;
+        final ByteBuffer scratch = ByteBuffer.allocate(VesselTargetCodec.MAX_RECORD_SIZE);
+
+        Writer(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Appends a record, rolling over to a new segment if the epoch has changed or the segment is full
+         * @param target the target
+         * @param mask the fields to append
+         */
+        void append(VesselTarget target, int mask) throws IOException {
+            scratch.clear();
+            VesselTargetCodec.encode(scratch, target, mask);
+            scratch.flip();
+
+            long e = epoch;
+            if (buf == null || segmentEpoch != e || buf.remaining() < scratch.remaining() + 4) {
+                nextSegment(e);
+            }
+            // Write the length last, so that a torn record is never replayed
+            int pos = buf.position();
+            buf.position(pos + 4);
+            buf.put(scratch);
+            buf.putInt(pos, scratch.limit());
+        }
+
+        /**
+         * Forces the current segment and maps a new one
+         * @param e the current epoch
+         */
+        private void nextSegment(long e) throws IOException {
+            force();
+            seq = (segmentEpoch == e) ? seq + 1 : 0;
+            segmentEpoch = e;
+            Path file = dir.resolve(String.format("journal-%012d-%04d-%06d.log", e, id, seq));
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+        }
+
+        /**
+         * Forces the current segment to disk
+         */
+        void force() {
+            MappedByteBuffer b = buf;
+            if (b != null) {
+                b.force();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import dk.dma.vessel.track.model.VesselTarget;
+
+/**
+ * Interface implemented by components that should be notified about changes to the target store
+ */
+public interface TargetListener {
+
+    /**
+     * Called whilst synchronized on the target when the target has been updated
+     * @param target the updated target
+     * @param updated the {@linkplain dk.dma.vessel.track.model.VesselTargetCodec} mask of the updated fields
+     */
+    void targetUpdated(VesselTarget target, int updated);
+
+    /**
+     * Called whilst synchronized on the target when the target has been removed from the store
+     * @param target the removed target
+     */
+    default void targetRemoved(VesselTarget target) {
+    }
+
+    /**
+     * Called when targets have been added, updated or replaced in bulk without individual notifications,
+     * i.e. when the cache has been loaded, synced or reconciled with the database
+     */
+    default void targetsReloaded() {
+    }
+}
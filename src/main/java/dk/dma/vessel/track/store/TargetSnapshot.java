@@ -0,0 +1,112 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import dk.dma.vessel.track.model.VesselTarget;
+import dk.dma.vessel.track.model.VesselTargetCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Reads and writes binary snapshots of the vessel target cache.
+ * <p>
+ * The snapshot consists of a header followed by a {@linkplain VesselTargetCodec} record
+ * with all fields of each target. Snapshots are written to a temporary file which replaces
+ * the previous snapshot once complete, and are read back through a memory-mapped buffer.
+ */
+public class TargetSnapshot {
+
+    static final int MAGIC = 0x56545331; // "VTS1"
+
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    private TargetSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the given targets to the given file
+     * @param file the snapshot file
+     * @param targets the targets to write
+     * @return the number of targets written
+     */
+    public static int write(Path file, Iterable<VesselTarget> targets) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // Leave room for the header, which is written last
+            channel.position(16);
+
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            for (VesselTarget t : targets) {
+                if (buf.remaining() < VesselTargetCodec.MAX_RECORD_SIZE) {
+                    flush(channel, buf);
+                }
+                synchronized (t) {
+                    VesselTargetCodec.encode(buf, t, VesselTargetCodec.ALL);
+                }
+                count++;
+            }
+            flush(channel, buf);
+
+            buf.putInt(MAGIC);
+            buf.putLong(System.currentTimeMillis());
+            buf.putInt(count);
+            buf.flip();
+            channel.write(buf, 0);
+            channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Reads the snapshot from the given file and passes the targets to the consumer
+     * @param file the snapshot file
+     * @param consumer the target consumer
+     * @return the time the snapshot was written
+     */
+    public static long read(Path file, Consumer<VesselTarget> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 16 || buf.getInt() != MAGIC) {
+                throw new IOException("Invalid snapshot file " + file);
+            }
+            long created = buf.getLong();
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                consumer.accept(VesselTargetCodec.decode(buf));
+            }
+            return created;
+        }
+    }
+}
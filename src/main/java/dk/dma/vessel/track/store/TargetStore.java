@@ -4,10 +4,16 @@ import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.packet.AisPacket;
 import dk.dma.vessel.track.model.PastTrack;
 import dk.dma.vessel.track.model.PastTrackPos;
+import dk.dma.vessel.track.model.TrackBuffer;
+import dk.dma.vessel.track.model.TrackSimplifier;
 import dk.dma.vessel.track.model.VesselTarget;
+import dk.dma.vessel.track.model.VesselTargetCodec;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -17,18 +23,30 @@ import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.persistence.EntityManager;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.Duration;
-import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Implementation of a target store
  */
 @Service
+@DependsOn("pastTrackMigration")
 @SuppressWarnings("unused")
 public class TargetStore {
 
@@ -37,27 +55,29 @@ public class TargetStore {
     public static final String PRIME_TARGETS_DB_SQL =
             "select v.mmsi from " + VesselTarget.class.getSimpleName() + " v";
 
-    public static final String LOAD_TARGETS_INCL_PAST_TRACKS_SQL =
+    public static final String LOAD_TARGETS_SQL =
             "SELECT t FROM " + VesselTarget.class.getSimpleName() + " t " +
-                    " left join fetch t.lastPastTrackPos p " +
                     " where t.lastReport > :lastReport";
 
-    public static final String DELETE_PAST_TRACKS_SQL =
-            "DELETE FROM " + PastTrackPos.class.getSimpleName() + " p " +
-                    " where p.time < :time " +
-                    " and not exists (" +
-                    "    select v from " + VesselTarget.class.getSimpleName() + " v where v.lastPastTrackPos = p" +
-                    " )";
-
-    public static final String LOAD_PAST_TRACKS_SQL =
-            "SELECT p FROM " + PastTrackPos.class.getSimpleName() + " p " +
-                    " where p.time > :time and p.vesselTarget.mmsi = :mmsi " +
-                    " order by p.time desc";
+    public static final String LOAD_MODIFIED_TARGETS_SQL =
+            "SELECT t FROM " + VesselTarget.class.getSimpleName() + " t " +
+                    " where t.modified > :modified and t.lastReport > :lastReport";
 
+    /** The resolution of the target expiry */
+    static final long EXPIRY_TICK = 1000L;
 
     @Resource
     EntityManager em;
 
+    @Autowired
+    VesselTargetWriter writer;
+
+    @Autowired
+    TargetJournal journal;
+
+    @Autowired
+    PastTrackPartitions partitions;
+
     @Value("${targetExpire}")
     String targetExpire;
 
@@ -70,14 +90,66 @@ public class TargetStore {
     @Value("${pastTrackMinDist}")
     String pastTrackMinDist;
 
+    @Value("${pastTrackBufferInterval:PT30S}")
+    String pastTrackBufferInterval;
+
+    @Value("${pastTrackBufferSize:2048}")
+    int pastTrackBufferSize;
+
+    @Value("${pastTrackLevels:1000,10000}")
+    String pastTrackLevels;
+
+    @Value("${pastTrackSimplifier:douglas-peucker}")
+    String pastTrackSimplifier;
+
     @Value("${slave:false}")
     boolean slave;
 
-    ConcurrentHashMap<Integer, VesselTarget> cache;
+    @Value("${slaveSyncOverlap:PT1M}")
+    String slaveSyncOverlap;
+
+    @Value("${snapshotFile:}")
+    String snapshotFile;
+
+    @Value("${minEpochDuration:PT2S}")
+    String minEpochDuration;
+
+    ConcurrentIntMap<VesselTarget> cache;
+
+    /** Targets that have changed since they were last persisted. Each target is queued at most once */
+    final Queue<VesselTarget> dirtyTargets = new ConcurrentLinkedQueue<>();
 
     boolean stopped;
     boolean started;
-    boolean saving;
+    volatile boolean reconciled;
+
+    /** Only used by slave instances: the most recent DB modification time stamp loaded from the DB */
+    long syncWatermark;
+
+    /** Only used by slave instances: set whilst the change stream of the master is applied */
+    volatile boolean replicating;
+
+    final List<TargetListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Expires the cached targets once they have not been reported for {@code targetExpire} */
+    volatile ExpiryWheel<VesselTarget> expiryWheel;
+    long targetTtl;
+    Thread expiryTicker;
+
+    /** The in-memory past tracks cover pastTrackTtl, with positions at least pastTrackBufferInterval apart */
+    long pastTrackRetention;
+    long pastTrackInterval;
+
+    /** The number of target changes, and the change epoch published at most every minEpochDuration */
+    final LongAdder changes = new LongAdder();
+    volatile long epoch;
+    volatile long epochChanges;
+    volatile long epochStart;
+    long minEpochMillis;
+
+    /** The min distances of the coarser levels of the in-memory past tracks */
+    int[] pastTrackLevelDists;
+    TrackSimplifier simplifier;
 
     /**
      * Called when the store is initialized
@@ -85,11 +157,47 @@ public class TargetStore {
     @PostConstruct
     public void init() throws IOException, ClassNotFoundException {
 
-        cache = new ConcurrentHashMap<>();
+        cache = new ConcurrentIntMap<>();
+        targetTtl = Duration.parse(targetExpire).toMillis();
+        pastTrackRetention = Duration.parse(pastTrackTtl).toMillis();
+        pastTrackInterval = Duration.parse(pastTrackBufferInterval).toMillis();
+        if (pastTrackBufferSize <= 0) {
+            throw new IllegalArgumentException("Invalid pastTrackBufferSize " + pastTrackBufferSize);
+        } else if (Integer.bitCount(pastTrackBufferSize) != 1) {
+            // The in-memory past tracks are ring buffers indexed by masking
+            int size = Integer.highestOneBit(pastTrackBufferSize) << 1;
+            LOG.warn("pastTrackBufferSize " + pastTrackBufferSize + " is not a power of two. Using " + size);
+            pastTrackBufferSize = size;
+        }
+        pastTrackLevelDists = Arrays.stream(StringUtils.split(pastTrackLevels, ", "))
+                .mapToInt(Integer::parseInt)
+                .sorted()
+                .toArray();
+        simplifier = TrackSimplifier.forName(pastTrackSimplifier);
+        minEpochMillis = Duration.parse(minEpochDuration).toMillis();
+        expiryWheel = new ExpiryWheel<>(targetTtl, EXPIRY_TICK, System.currentTimeMillis());
         LOG.info("Starting up as " + (slave ? "read-only slave instance" : "master instance"));
 
+        expiryTicker = new Thread(this::expireTargets, "target-expiry");
+        expiryTicker.setDaemon(true);
+        expiryTicker.start();
+
+        // Masters start from the local snapshot, if present, and reconcile with the DB in the background
+        if (!slave && loadFromSnapshot()) {
+            replayJournal();
+            started = true;
+            Thread reconcile = new Thread(this::reconcileWithDB, "target-reconcile");
+            reconcile.setDaemon(true);
+            reconcile.start();
+            return;
+        }
+
         // Load data from the DB
         loadFromDB();
+        if (!slave) {
+            replayJournal();
+        }
+        reconciled = true;
         started = true;
     }
 
@@ -99,8 +207,16 @@ public class TargetStore {
     @PreDestroy
     public void destroy() {
         try {
-            stopped = true;
             LOG.info("Shutting down target store");
+            if (!slave && started) {
+                // Flush the pending changes, which also truncates the journal
+                saveToDB();
+            }
+            stopped = true;
+            expiryTicker.interrupt();
+            if (!slave && started) {
+                saveSnapshot();
+            }
         } catch (Exception e) {
             LOG.error("Error shutting down AIS bus", e);
         }
@@ -114,14 +230,14 @@ public class TargetStore {
         long t0 = System.currentTimeMillis();
         long expiry = t0 - Duration.parse(targetExpire).toMillis();
 
-        ConcurrentHashMap<Integer, VesselTarget> newCache = new ConcurrentHashMap<>();
+        ConcurrentIntMap<VesselTarget> newCache = new ConcurrentIntMap<>(Math.max(cache.size(), 1024), 64);
 
         // Prime the vessel target table. It increases the speed of the subsequent SQL dramatically
         LOG.debug("Priming DB with " + em.createQuery(PRIME_TARGETS_DB_SQL)
                 .getResultList().stream().count() + " vessels");
 
         // Load and cache all active vessel targets
-        em.createQuery(LOAD_TARGETS_INCL_PAST_TRACKS_SQL, VesselTarget.class)
+        em.createQuery(LOAD_TARGETS_SQL, VesselTarget.class)
                 .setParameter("lastReport", new Date(expiry))
                 .getResultList()
                 .forEach(t -> newCache.put(t.getMmsi(), t));
@@ -135,28 +251,280 @@ public class TargetStore {
         LOG.info("**** Loaded " + newCache.size() + " targets (of which " + pastTrackCnt +
                 " has past-tracks) from DB in " + (System.currentTimeMillis() - t0) + " ms");
 
-        // Update the current cache
-        cache = newCache;
+        // Update the current cache. Rows not written since the modification time stamp was introduced have none
+        syncWatermark = newCache.values().stream()
+                .filter(t -> t.getModified() != null)
+                .mapToLong(t -> t.getModified().getTime())
+                .max().orElse(0L);
+        setCache(newCache);
+    }
+
+    /**
+     * Only used by slave instances:<br>
+     * Loads the vessel targets that have been written since the last sync, and patches the cache in place.
+     * <p>
+     * The watermark is the modification time stamp assigned by the database, rather than the AIS
+     * report time, which may lag arbitrarily behind the time the row is written. The time stamp is
+     * assigned when the row is written, not when the save transaction commits, so the query overlaps
+     * the previous sync by {@code slaveSyncOverlap}, which must cover the duration of a DB save.
+     */
+    private void syncFromDB() {
+        long t0 = System.currentTimeMillis();
+        long expiry = t0 - Duration.parse(targetExpire).toMillis();
+        long since = Math.max(syncWatermark - Duration.parse(slaveSyncOverlap).toMillis(), 0L);
+
+        int[] counts = new int[2];
+        long[] watermark = { syncWatermark };
+        em.createQuery(LOAD_MODIFIED_TARGETS_SQL, VesselTarget.class)
+                .setParameter("modified", new Date(since))
+                .setParameter("lastReport", new Date(expiry))
+                .getResultList()
+                .forEach(t -> {
+                    if (t.getModified() != null) {
+                        watermark[0] = Math.max(watermark[0], t.getModified().getTime());
+                    }
+                    VesselTarget cached = cache.putIfAbsent(t.getMmsi(), t);
+                    if (cached == null) {
+                        scheduleExpiry(t);
+                        counts[0]++;
+                    } else if (t.getLastReport().after(cached.getLastReport())) {
+                        cached.copyFrom(t);
+                        counts[1]++;
+                    }
+                });
+        em.clear();
+        syncWatermark = watermark[0];
+        notifyReloaded();
+
+        LOG.info("Synced with DB. Added " + counts[0] + ", updated " + counts[1] +
+                " targets in " + (System.currentTimeMillis() - t0) + " ms");
     }
 
     /**
-     * Periodically expire vessel targets from the cache
+     * Only used by master instances:<br>
+     * Load and cache the vessel targets from the local snapshot file
+     * @return if the snapshot was loaded
      */
-    @Transactional
-    @Scheduled(cron="10 0 */1 * * *")
-    public void periodicallyExpireTargets() {
+    private boolean loadFromSnapshot() {
+        if (StringUtils.isBlank(snapshotFile) || !Files.exists(Paths.get(snapshotFile))) {
+            return false;
+        }
+
         long t0 = System.currentTimeMillis();
         long expiry = t0 - Duration.parse(targetExpire).toMillis();
-        cache.entrySet().removeIf(t -> t.getValue().getLastReport().getTime() < expiry);
-        LOG.info("Clean up expired targets in " + (System.currentTimeMillis() - t0) + " ms");
+        ConcurrentIntMap<VesselTarget> newCache = new ConcurrentIntMap<>(1024, 64);
+        try {
+            long created = TargetSnapshot.read(Paths.get(snapshotFile), t -> {
+                if (t.getLastReport() != null && t.getLastReport().getTime() >= expiry) {
+                    newCache.put(t.getMmsi(), t);
+                    // Targets with unsaved changes must still be persisted
+                    if (t.changed() != VesselTarget.State.NONE && t.flagQueued()) {
+                        dirtyTargets.add(t);
+                    }
+                }
+            });
+            LOG.info("**** Loaded " + newCache.size() + " targets from snapshot written " + new Date(created) +
+                    " in " + (System.currentTimeMillis() - t0) + " ms");
+        } catch (Exception e) {
+            LOG.error("Error loading snapshot " + snapshotFile + ", loading from DB instead", e);
+            dirtyTargets.clear();
+            return false;
+        }
+
+        setCache(newCache);
+        return true;
     }
 
     /**
      * Only used by master instances:<br>
-     * Periodically delete expired past tracks from the database
+     * Reconciles the cache loaded from the local snapshot with the database.
+     * Targets missing from the snapshot are added, and targets that are more recent in
+     * the database are updated in place.
      */
-    @Scheduled(cron="50 17 9 */1 * *")
-    @Transactional
+    private void reconcileWithDB() {
+        long t0 = System.currentTimeMillis();
+        long expiry = t0 - Duration.parse(targetExpire).toMillis();
+        try {
+            int[] counts = new int[2];
+            em.createQuery(LOAD_TARGETS_SQL, VesselTarget.class)
+                    .setParameter("lastReport", new Date(expiry))
+                    .getResultList()
+                    .forEach(t -> {
+                        VesselTarget cached = cache.putIfAbsent(t.getMmsi(), t);
+                        if (cached == null) {
+                            scheduleExpiry(t);
+                            counts[0]++;
+                        } else {
+                            synchronized (cached) {
+                                if (cached.getLastReport() == null || t.getLastReport().after(cached.getLastReport())) {
+                                    cached.copyFrom(t);
+                                    counts[1]++;
+                                } else {
+                                    // Targets created by the journal replay may only contain the replayed fields
+                                    cached.fillFrom(t);
+                                }
+                            }
+                        }
+                    });
+            em.clear();
+            notifyReloaded();
+            LOG.info("Reconciled snapshot with DB. Added " + counts[0] + " targets, updated " + counts[1] +
+                    " targets in " + (System.currentTimeMillis() - t0) + " ms");
+        } catch (Exception e) {
+            LOG.error("Error reconciling snapshot with DB", e);
+        } finally {
+            reconciled = true;
+        }
+    }
+
+    /**
+     * Only used by master instances:<br>
+     * Replays the updates journaled since the last database flush into the cache.
+     * Records that are not newer than the cached target are skipped.
+     */
+    private void replayJournal() {
+        long t0 = System.currentTimeMillis();
+        int[] applied = new int[1];
+        try {
+            int count = journal.replay(buf -> {
+                // Decode a copy of the record first to check its time stamp
+                VesselTarget delta = VesselTargetCodec.decode(buf.duplicate());
+                VesselTarget t = cache.computeIfAbsent(delta.getMmsi(), this::newTarget);
+                synchronized (t) {
+                    if (t.getLastReport() == null || delta.getLastReport().after(t.getLastReport())) {
+                        VesselTargetCodec.decode(buf, t);
+                        if (t.changed() == VesselTarget.State.NONE) {
+                            t.flagChanged(VesselTarget.State.UPDATED);
+                        }
+                        if (t.flagQueued()) {
+                            dirtyTargets.add(t);
+                        }
+                        applied[0]++;
+                    }
+                }
+            });
+            if (count > 0) {
+                LOG.info("Replayed " + applied[0] + " of " + count + " journal records in " +
+                        (System.currentTimeMillis() - t0) + " ms");
+            }
+        } catch (Exception e) {
+            LOG.error("Error replaying journal", e);
+        }
+    }
+
+    /**
+     * Only used by master instances:<br>
+     * Periodically write a snapshot of the cache to the local snapshot file
+     */
+    @Scheduled(cron="45 */5 * * * *")
+    public void periodicallySaveSnapshot() {
+        if (!slave && started && !stopped) {
+            saveSnapshot();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the cache to the local snapshot file
+     */
+    private synchronized void saveSnapshot() {
+        if (StringUtils.isBlank(snapshotFile)) {
+            return;
+        }
+        long t0 = System.currentTimeMillis();
+        try {
+            int count = TargetSnapshot.write(Paths.get(snapshotFile), cache.values());
+            LOG.info("Wrote snapshot of " + count + " targets in " + (System.currentTimeMillis() - t0) + " ms");
+        } catch (Exception e) {
+            LOG.error("Error writing snapshot " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * Replaces the vessel target cache, and schedules the expiry of all targets in a new expiry wheel
+     * @param newCache the new cache
+     */
+    private void setCache(ConcurrentIntMap<VesselTarget> newCache) {
+        long now = System.currentTimeMillis();
+        ExpiryWheel<VesselTarget> wheel = new ExpiryWheel<>(targetTtl, EXPIRY_TICK, now);
+        newCache.forEach(t -> wheel.schedule(t, expiryDeadline(t, now)));
+        cache = newCache;
+        expiryWheel = wheel;
+        notifyReloaded();
+    }
+
+    /**
+     * Creates a new vessel target and schedules its expiry.
+     * Used as mapping function when adding targets to the cache
+     * @param mmsi the MMSI of the target
+     * @return the new target
+     */
+    private VesselTarget newTarget(int mmsi) {
+        VesselTarget t = new VesselTarget(mmsi);
+        scheduleExpiry(t);
+        return t;
+    }
+
+    /**
+     * Schedules the expiry of a target added to the cache
+     * @param t the target
+     */
+    private void scheduleExpiry(VesselTarget t) {
+        expiryWheel.schedule(t, expiryDeadline(t, System.currentTimeMillis()));
+    }
+
+    /**
+     * Returns the time at which the target expires
+     * @param t the target
+     * @param now the current time, used for targets that have not been reported yet
+     * @return the time at which the target expires
+     */
+    private long expiryDeadline(VesselTarget t, long now) {
+        Date lastReport = t.getLastReport();
+        return (lastReport != null ? lastReport.getTime() : now) + targetTtl;
+    }
+
+    /**
+     * Runs the expiry ticker, which continuously advances the expiry wheel.
+     * <p>
+     * The targets whose deadline has passed are removed from the cache if they have not been
+     * reported since they were scheduled, and otherwise re-scheduled with their new deadline.
+     */
+    private void expireTargets() {
+        while (!stopped) {
+            try {
+                Thread.sleep(EXPIRY_TICK);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            ExpiryWheel<VesselTarget> wheel = expiryWheel;
+            int[] expired = new int[1];
+            wheel.advance(now, t -> {
+                synchronized (t) {
+                    long deadline = expiryDeadline(t, now);
+                    if (deadline > now) {
+                        // Reported since it was scheduled. Skip targets that have already been replaced
+                        if (cache.get(t.getMmsi()) == t) {
+                            wheel.schedule(t, deadline);
+                        }
+                    } else if (cache.remove(t.getMmsi(), t)) {
+                        notifyRemoved(t);
+                        expired[0]++;
+                    }
+                }
+            });
+            if (expired[0] > 0) {
+                LOG.debug("Expired " + expired[0] + " targets");
+            }
+        }
+    }
+
+    /**
+     * Only used by master instances:<br>
+     * Periodically delete expired past tracks from the database, by dropping the expired day tables
+     */
+    @Scheduled(cron="50 17 */1 * * *")
     public void periodicallyExpirePastTracks() {
         // Only master instance expires past tracks
         if (slave || stopped) {
@@ -166,10 +534,8 @@ public class TargetStore {
         long t0 = System.currentTimeMillis();
         long expiry = t0 - Duration.parse(pastTrackExpire).toMillis();
         try {
-            int cnt = em.createQuery(DELETE_PAST_TRACKS_SQL)
-                    .setParameter("time", new Date(expiry))
-                    .executeUpdate();
-            LOG.info("Clean up " + cnt + " expired past-tracks in " + (System.currentTimeMillis() - t0) + " ms");
+            int cnt = partitions.dropBefore(expiry);
+            LOG.info("Clean up " + cnt + " expired past-track tables in " + (System.currentTimeMillis() - t0) + " ms");
         } catch (Exception e) {
             LOG.error("Error cleaning up expired past-tracks", e);
         }
@@ -177,81 +543,116 @@ public class TargetStore {
 
     /**
      * Only used by slave instances:<br>
-     * Periodically load vessel targets and past tracks from the database
+     * Periodically load changed vessel targets and past tracks from the database
      */
     @Scheduled(cron="40 */1 * * * *")
     @Transactional
     @SuppressWarnings("all")
     public void periodicallyLoadFromDB() {
-        // Only slave instances loads data periodically from the DB
-        if (slave && !stopped) {
-            loadFromDB();
+        // Only slave instances loads data periodically from the DB, unless replicating from the master
+        if (slave && !stopped && !replicating) {
+            syncFromDB();
         }
     }
 
     /**
      * Only used by master instances:<br>
-     * Periodically save changed vessel targets and past tracks to the database
+     * Periodically save changed vessel targets and past tracks to the database.
+     * <p>
+     * The changed targets are snapshotted whilst synchronized, and then written in JDBC batches
+     * by the {@linkplain VesselTargetWriter} in a single transaction.
+     * <p>
+     * Changes are journaled between runs, so the interval can be configured via {@code dbSaveCron}
+     * without risking more data loss.
      */
-    @Scheduled(cron="20 */1 * * * *")
-    @Transactional
-    @SuppressWarnings("all")
+    @Scheduled(cron="${dbSaveCron:20 */1 * * * *}")
     public void periodicallySaveToDB() {
-        // Only master instances saves data periodically to the DB
-        if (slave || saving) {
+        if (!stopped) {
+            saveToDB();
+        }
+    }
+
+    /**
+     * Saves changed vessel targets and past tracks to the database,
+     * and truncates the journal once committed.
+     * Synchronized, so that a save on shutdown waits for a running periodic save
+     */
+    @SuppressWarnings("all")
+    private synchronized void saveToDB() {
+        // Only master instances saves data to the DB, and not until reconciled with the DB
+        if (slave || !reconciled) {
             return;
         }
 
-        saving = true;
+        List<VesselTarget> drained = new ArrayList<>();
         try {
             long t0 = System.currentTimeMillis();
-            int cntNewTargets = 0, cntUpdatedTargets = 0, cntNewPastTrack = 0;
-            for (VesselTarget t : cache.values()) {
-                if (stopped) {
-                    break;
-                }
-                if (t.changed() == VesselTarget.State.NEW || t.changed() == VesselTarget.State.UPDATED) {
 
-                    // Check if there are past track entries to add
-                    synchronized (t) {
-                        VesselTarget.State state = t.changed();
+            // Changes journaled from now on belong to the next run
+            long epoch = journal.roll();
+
+            List<VesselTargetWriter.TargetUpdate> updates = new ArrayList<>();
+            VesselTarget t;
+            while (!stopped && (t = dirtyTargets.poll()) != null) {
+                drained.add(t);
+                synchronized (t) {
+                    if (t.changed() != VesselTarget.State.NONE) {
+                        // Check if there are past track entries to add
                         PastTrackPos newPos = t.getNewPastTrackPos();
                         if (newPos != null && t.computePastTrackDist(newPos) > VesselTarget.PAST_TRACK_MIN_DIST) {
                             newPos.setVesselTarget(t);
                             t.setLastPastTrackPos(newPos);
-                            newPos = null;
-                            cntNewPastTrack++;
-                        }
-
-                        // Persist the changes
-                        t = em.merge(t);
-                        cache.put(t.getMmsi(), t);
-                        if (state == VesselTarget.State.NEW) {
-                            cntNewTargets++;
+                            t.setNewPastTrackPos(null);
                         } else {
-                            cntUpdatedTargets++;
-                        }
-                        if ((cntNewTargets + cntUpdatedTargets) % 1000 == 0) {
-                            em.flush();
+                            newPos = null;
                         }
-
-                        // newPastTrackPos is transient and must be restored after merge()
-                        t.setNewPastTrackPos(newPos);
-                        t.flagChanged(VesselTarget.State.NONE);
-
+                        updates.add(writer.snapshot(t, newPos));
                     }
-
+                    t.flagChanged(VesselTarget.State.NONE);
                 }
             }
-            em.clear();
+            long t1 = System.currentTimeMillis();
+
+            // Persist the changes
+            writer.write(updates);
+            updates.forEach(VesselTargetWriter.TargetUpdate::committed);
+
+            // All changes journaled up until the epoch roll have been committed
+            if (!stopped) {
+                journal.truncate(epoch);
+            }
+
+            long cntNewTargets = updates.stream().filter(u -> u.getState() == VesselTarget.State.NEW).count();
+            long cntNewPastTrack = updates.stream().filter(VesselTargetWriter.TargetUpdate::hasNewPastTrackPos).count();
             LOG.info("New targets: " + cntNewTargets +
-                    ", updated targets: " + cntUpdatedTargets +
+                    ", updated targets: " + (updates.size() - cntNewTargets) +
                     ", new past-tracks: " + cntNewPastTrack +
-                    ", Time: " + (System.currentTimeMillis() - t0) + " ms");
+                    ", still queued: " + dirtyTargets.size() +
+                    ", Time: " + (System.currentTimeMillis() - t0) + " ms" +
+                    " (snapshot " + (t1 - t0) + " ms)");
         } catch (Exception e) {
             LOG.error("Error saving to database", e);
+            // Re-queue the targets of this run, so that they are persisted in the next run
+            drained.forEach(this::requeue);
+        }
+    }
+
+    /**
+     * Flags the cached instance of the given target as updated and queues it for persistence
+     * @param target the target to re-queue
+     */
+    private void requeue(VesselTarget target) {
+        VesselTarget t = cache.get(target.getMmsi());
+        if (t != null) {
+            synchronized (t) {
+                if (t.changed() == VesselTarget.State.NONE) {
+                    t.flagChanged(VesselTarget.State.UPDATED);
+                }
+                if (t.flagQueued()) {
+                    dirtyTargets.add(t);
+                }
+            }
         }
-        saving = false;
     }
 
     /**
@@ -271,13 +672,183 @@ public class TargetStore {
      */
     public VesselTarget merge(AisPacket packet, AisMessage message) {
         if (!slave && started && !stopped) {
-            VesselTarget target = cache.computeIfAbsent(message.getUserId(), VesselTarget::new);
-            target.merge(packet, message);
-            return target;
+            while (true) {
+                VesselTarget target = cache.computeIfAbsent(message.getUserId(), this::newTarget);
+                synchronized (target) {
+                    // Retry if the target expired between the look-up and the lock
+                    if (cache.get(target.getMmsi()) != target) {
+                        continue;
+                    }
+                    int updated = target.merge(packet, message);
+                    if (updated != 0) {
+                        // Queue the target before the journal can be truncated past the appended update
+                        Lock appendLock = journal.appendLock();
+                        appendLock.lock();
+                        try {
+                            journal.append(target, updated);
+                            if (target.flagQueued()) {
+                                dirtyTargets.add(target);
+                            }
+                        } finally {
+                            appendLock.unlock();
+                        }
+                        updatePastTrack(target, updated);
+                        notifyUpdated(target, updated);
+                    }
+                }
+                return target;
+            }
         }
         return null;
     }
 
+    /**
+     * Only used by slave instances:<br>
+     * Applies a change record replicated from the master to the vessel target cache
+     * @param record the {@linkplain VesselTargetCodec} record
+     */
+    public void applyReplicated(ByteBuffer record) {
+        if (slave && started && !stopped) {
+            int mmsi = VesselTargetCodec.peekMmsi(record);
+            while (true) {
+                VesselTarget target = cache.computeIfAbsent(mmsi, this::newTarget);
+                synchronized (target) {
+                    // Retry if the target expired between the look-up and the lock
+                    if (cache.get(mmsi) != target) {
+                        continue;
+                    }
+                    int updated = VesselTargetCodec.decode(record, target);
+                    target.flagChanged(VesselTarget.State.NONE);
+                    if (replicating) {
+                        updatePastTrack(target, updated);
+                    }
+                    notifyUpdated(target, updated);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Only used by slave instances:<br>
+     * Flags whether the change stream of the master is being applied
+     * @param replicating whether the change stream of the master is being applied
+     */
+    public void setReplicating(boolean replicating) {
+        if (this.replicating && !replicating) {
+            // The in-memory past tracks will have gaps until replication is resumed
+            cache.forEach(t -> {
+                synchronized (t) {
+                    t.setPastTrack(null);
+                }
+            });
+        }
+        this.replicating = replicating;
+    }
+
+    /**
+     * Appends the position of the target to its in-memory past track, if the position was updated.
+     * Must be called whilst synchronized on the target
+     * @param target the target
+     * @param updated the mask of the updated fields
+     */
+    private void updatePastTrack(VesselTarget target, int updated) {
+        if ((updated & (VesselTargetCodec.LAT | VesselTargetCodec.LON)) == 0 || !target.checkValidPos()) {
+            return;
+        }
+
+        long time = target.getLastPosReport().getTime();
+        PastTrack pastTrack = target.getPastTrack();
+        if (pastTrack == null) {
+            // Positions prior to this one are seeded from the DB on demand
+            pastTrack = new PastTrack(time, pastTrackBufferSize, pastTrackLevelDists);
+            target.setPastTrack(pastTrack);
+        }
+        if (pastTrack.add(target.getLatValue(), target.getLonValue(), target.getCogValue(), target.getSogValue(), time,
+                VesselTarget.PAST_TRACK_MIN_DIST, pastTrackInterval)) {
+            pastTrack.trim(time - pastTrackRetention);
+        }
+    }
+
+    /**
+     * Adds a listener that is notified about changes to the vessel targets
+     * @param listener the listener to add
+     */
+    public void addListener(TargetListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns the current change epoch of the store.
+     * <p>
+     * The epoch increases monotonically when the targets have changed, but at most once every
+     * {@code minEpochDuration}. Results computed from the targets within the same epoch may thus
+     * be reused, and are at most {@code minEpochDuration} out of date.
+     *
+     * @return the current change epoch
+     */
+    public long getEpoch() {
+        long now = System.currentTimeMillis();
+        if (changes.sum() != epochChanges && now - epochStart >= minEpochMillis) {
+            synchronized (changes) {
+                long count = changes.sum();
+                if (count != epochChanges && now - epochStart >= minEpochMillis) {
+                    epochChanges = count;
+                    epochStart = now;
+                    epoch++;
+                }
+            }
+        }
+        return epoch;
+    }
+
+    /**
+     * Notifies the listeners that the target has been removed.
+     * Must be called whilst synchronized on the target
+     * @param target the target
+     */
+    private void notifyRemoved(VesselTarget target) {
+        changes.increment();
+        for (TargetListener listener : listeners) {
+            try {
+                listener.targetRemoved(target);
+            } catch (Exception e) {
+                LOG.error("Error notifying listener " + listener, e);
+            }
+        }
+    }
+
+    /**
+     * Notifies the listeners that the targets have been reloaded in bulk
+     */
+    private void notifyReloaded() {
+        changes.increment();
+        for (TargetListener listener : listeners) {
+            try {
+                listener.targetsReloaded();
+            } catch (Exception e) {
+                LOG.error("Error notifying listener " + listener, e);
+            }
+        }
+    }
+
+    /**
+     * Notifies the listeners that the target has been updated.
+     * Must be called whilst synchronized on the target
+     * @param target the target
+     * @param updated the mask of the updated fields
+     */
+    private void notifyUpdated(VesselTarget target, int updated) {
+        changes.increment();
+        for (TargetListener listener : listeners) {
+            try {
+                listener.targetUpdated(target, updated);
+            } catch (Exception e) {
+                LOG.error("Error notifying listener " + listener, e);
+            }
+        }
+    }
+
     /**
      * Returns the vessel target with the given MMSI
      * @param mmsi the MMSI
@@ -304,22 +875,38 @@ public class TargetStore {
     }
 
     /**
-     * Returns the past tracks for the vessel target with the given MMSI
+     * Returns the past tracks for the vessel target with the given MMSI.
+     * See {@linkplain #getPastTracks(Collection, Integer, Duration, Integer)}
+     *
      * @param mmsi the MMSI
-     * @param minDist the minimum distance in meters between positions
+     * @param minDist the simplification tolerance in meters, used if no zoom level is given
      * @param age the minimum duration of the past track positions
-     * @return the past track
+     * @param zoom optionally, the zoom level of the map, from which the simplification tolerance is derived
+     * @return the past track, or null if there is no active vessel target with the given MMSI
      */
-    @Transactional
-    public List<PastTrackPos> getPastTracks(int mmsi, Integer minDist, Duration age) {
-        List<PastTrackPos> result = new ArrayList<>();
-
-        // Check that the target is active
-        VesselTarget target = get(mmsi);
-        if (target == null) {
-            return result;
-        }
+    public TrackBuffer getPastTracks(int mmsi, Integer minDist, Duration age, Integer zoom) {
+        return getPastTracks(Collections.singletonList(mmsi), minDist, age, zoom).get(mmsi);
+    }
 
+    /**
+     * Returns the past tracks for the vessel targets with the given MMSIs.
+     * <p>
+     * Past tracks within {@code pastTrackTtl} are served from the in-memory past track of the targets,
+     * which are seeded from the database the first time they do not cover the requested period.
+     * Older past tracks are loaded from the database. The past tracks that are loaded from the
+     * database are fetched with a single batched query.
+     * <p>
+     * The positions are copied into primitive arrays and simplified in place, using the
+     * {@code pastTrackSimplifier}, so no per-position objects are created.
+     * The past tracks are returned in chronological order.
+     *
+     * @param mmsis the MMSIs
+     * @param minDist the simplification tolerance in meters, used if no zoom level is given
+     * @param age the minimum duration of the past track positions
+     * @param zoom optionally, the zoom level of the map, from which the simplification tolerance is derived
+     * @return the past tracks of the active vessel targets, in the order of the given MMSIs
+     */
+    public Map<Integer, TrackBuffer> getPastTracks(Collection<Integer> mmsis, Integer minDist, Duration age, Integer zoom) {
         // Check if minimum distance is defined
         if (minDist == null) {
             minDist = Integer.valueOf(pastTrackMinDist);
@@ -329,22 +916,112 @@ public class TargetStore {
         if (age == null) {
             age = Duration.parse(pastTrackTtl);
         }
-        ZonedDateTime date = ZonedDateTime.now().minus(age);
+        long now = System.currentTimeMillis();
+        long since = now - age.toMillis();
+
+        // Slaves only maintain the in-memory past tracks whilst replicating
+        boolean inMemory = age.toMillis() <= pastTrackRetention && (!slave || replicating);
+
+        Map<Integer, TrackBuffer> result = new LinkedHashMap<>();
+        Map<Integer, Double> tolerances = new HashMap<>();
+        List<Integer> missing = new ArrayList<>();
+        for (Integer mmsi : mmsis) {
+            // Check that the target is active
+            VesselTarget target = get(mmsi);
+            if (target == null || result.containsKey(mmsi)) {
+                continue;
+            }
+
+            // Check if the tolerance is given by the zoom level
+            Float lat = target.getLat();
+            double tolerance = zoom != null
+                    ? TrackSimplifier.zoomTolerance(zoom, lat != null ? lat : 0)
+                    : minDist;
+            tolerances.put(mmsi, tolerance);
 
-        // Fetch data from the database
-        result.addAll(em.createQuery(LOAD_PAST_TRACKS_SQL, PastTrackPos.class)
-                .setParameter("time", Date.from(date.toInstant()))
-                .setParameter("mmsi", new Integer(mmsi))
-                .getResultList());
+            TrackBuffer track = inMemory ? listPastTrack(target, since, (int)tolerance) : null;
+            if (track == null) {
+                missing.add(mmsi);
+            }
+            result.put(mmsi, track);
+        }
 
-        // Add the current position of the vessel target
-        PastTrackPos currentPos = new PastTrackPos(target);
-        if (result.size() > 0 && !result.get(0).equals(currentPos)) {
-            result.add(0, currentPos);
+        // Fetch the remaining past tracks from the database
+        if (!missing.isEmpty()) {
+            long loadSince = inMemory ? now - pastTrackRetention : since;
+            Map<Integer, TrackBuffer> loaded = loadPastTracks(missing, loadSince);
+            for (Integer mmsi : missing) {
+                TrackBuffer positions = loaded.getOrDefault(mmsi, new TrackBuffer(0));
+                VesselTarget target = get(mmsi);
+                if (inMemory && target != null) {
+                    TrackBuffer track = new TrackBuffer();
+                    synchronized (target) {
+                        PastTrack pastTrack = target.getPastTrack();
+                        if (pastTrack == null) {
+                            pastTrack = new PastTrack(now, pastTrackBufferSize, pastTrackLevelDists);
+                            target.setPastTrack(pastTrack);
+                        }
+                        pastTrack.seed(positions, loadSince);
+                        pastTrack.copyTo(since, tolerances.get(mmsi).intValue(), track);
+                    }
+                    positions = track;
+                }
+                result.put(mmsi, positions);
+            }
         }
 
-        // Down-sample the past track position list
-        return PastTrack.downSample(result, minDist, age.toMillis());
+        for (Map.Entry<Integer, TrackBuffer> e : result.entrySet()) {
+            TrackBuffer track = e.getValue();
+            VesselTarget target = get(e.getKey());
+
+            // Add the current position of the vessel target
+            if (target != null) {
+                synchronized (target) {
+                    Date posReport = target.getLastPosReport();
+                    if (!track.isEmpty() && target.getLat() != null && target.getLon() != null && posReport != null
+                            && posReport.getTime() != track.getLastTime()) {
+                        track.add(target.getLat(), target.getLon(),
+                                target.getCog() != null ? target.getCog() : 0f,
+                                target.getSog() != null ? target.getSog() : 0f,
+                                posReport.getTime());
+                    }
+                }
+            }
+
+            // Simplify the past track positions
+            simplifier.simplify(track, tolerances.get(e.getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the in-memory past track positions of the target since the given time,
+     * from the coarsest level of the past track that suits the given min distance
+     * @param target the target
+     * @param since the time of the oldest position
+     * @param minDist the min distance in meters between the positions
+     * @return the past track positions, or null if the in-memory past track does not cover the period
+     */
+    private TrackBuffer listPastTrack(VesselTarget target, long since, int minDist) {
+        synchronized (target) {
+            PastTrack pastTrack = target.getPastTrack();
+            if (pastTrack == null || pastTrack.getCoveredSince() > since) {
+                return null;
+            }
+            TrackBuffer result = new TrackBuffer();
+            pastTrack.copyTo(since, minDist, result);
+            return result;
+        }
+    }
+
+    /**
+     * Loads the past track positions of the given MMSIs since the given time from the database
+     * @param mmsis the MMSIs
+     * @param since the time of the oldest position
+     * @return the past track positions
+     */
+    private Map<Integer, TrackBuffer> loadPastTracks(Collection<Integer> mmsis, long since) {
+        return partitions.query(mmsis, since);
     }
 
 }
@@ -0,0 +1,304 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import com.google.common.collect.Lists;
+import dk.dma.vessel.track.model.PastTrackPos;
+import dk.dma.vessel.track.model.PastTrackSegment;
+import dk.dma.vessel.track.model.VesselTarget;
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Persists changed vessel targets and their new past track positions using JDBC batches.
+ * <p>
+ * Vessel targets are written with {@code INSERT ... ON DUPLICATE KEY UPDATE}, so the
+ * entities need not be loaded first, as is the case for {@code EntityManager.merge()}.
+ * The table and column names are resolved from the Hibernate mapping of the entities.
+ */
+@Service
+public class VesselTargetWriter {
+
+    static final Logger LOG = LoggerFactory.getLogger(VesselTargetWriter.class);
+
+    /**
+     * The vessel target properties written by the upsert, in column order after the MMSI
+     */
+    static final String[] TARGET_PROPERTIES = {
+            "targetType", "sourceType", "country", "lastReport",
+            "lastPosReport", "lat", "lon", "cog", "sog", "heading", "rot", "navStatus",
+            "lastStaticReport", "length", "width", "name", "callsign", "imoNo", "destination",
+            "draught", "eta", "vesselType", "maxSpeed",
+            "pastTrackLat", "pastTrackLon", "pastTrackCog", "pastTrackSog", "pastTrackTime"
+    };
+
+    @Resource
+    EntityManager em;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    PastTrackPartitions partitions;
+
+    @Value("${dbBatchSize:1000}")
+    int batchSize;
+
+    String upsertTargetSql;
+
+    /**
+     * Resolves the SQL statements from the entity mappings
+     */
+    @PostConstruct
+    public void init() {
+        SessionFactory sessionFactory = em.getEntityManagerFactory().unwrap(SessionFactory.class);
+        AbstractEntityPersister target = (AbstractEntityPersister)sessionFactory.getClassMetadata(VesselTarget.class);
+
+        String mmsiCol = target.getIdentifierColumnNames()[0];
+        String modifiedCol = column(target, "modified");
+        List<String> targetCols = Arrays.stream(TARGET_PROPERTIES)
+                .map(p -> column(target, p))
+                .collect(Collectors.toList());
+
+        // The modification time stamp is assigned by the database, and is what slaves sync against
+        upsertTargetSql = String.format(
+                "INSERT INTO %s (%s, %s, %s) VALUES (%s, CURRENT_TIMESTAMP) ON DUPLICATE KEY UPDATE %s, %s = CURRENT_TIMESTAMP",
+                target.getTableName(),
+                mmsiCol,
+                StringUtils.join(targetCols, ", "),
+                modifiedCol,
+                placeholders(targetCols.size() + 1),
+                targetCols.stream().map(c -> c + " = VALUES(" + c + ")").collect(Collectors.joining(", ")),
+                modifiedCol);
+
+        LOG.debug("Vessel target upsert: " + upsertTargetSql);
+    }
+
+    /**
+     * Returns the column name of the given entity property
+     * @param persister the entity persister
+     * @param property the property
+     * @return the column name of the given entity property
+     */
+    private static String column(AbstractEntityPersister persister, String property) {
+        return persister.getPropertyColumnNames(property)[0];
+    }
+
+    /**
+     * Returns a comma-separated list of the given number of JDBC placeholders
+     * @param count the number of placeholders
+     * @return the comma-separated placeholders
+     */
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    /**
+     * Takes a snapshot of the persisted state of the target.
+     * <p>
+     * Must be called whilst synchronized on the target. The given new past track position is appended
+     * to the past track segment of its hour. The chunks of the segments are included in the snapshot as long
+     * as they have positions that have not been committed, so a failed write is retried with the next snapshot,
+     * even when the new position of the retry falls in the next hour.
+     *
+     * @param t the target
+     * @param newPos the position that has just become the last past track position of the target, or null
+     * @return the snapshot of the target
+     */
+    public TargetUpdate snapshot(VesselTarget t, PastTrackPos newPos) {
+        PastTrackPos lastPos = t.getLastPastTrackPos();
+
+        Object[] row = {
+                t.getMmsi(),
+                ordinal(t.getTargetType()),
+                ordinal(t.getSourceType()),
+                t.getCountry(),
+                timestamp(t.getLastReport()),
+                timestamp(t.getLastPosReport()),
+                t.getLat(),
+                t.getLon(),
+                t.getCog(),
+                t.getSog(),
+                t.getHeading(),
+                t.getRot(),
+                ordinal(t.getNavStatus()),
+                timestamp(t.getLastStaticReport()),
+                t.getLength(),
+                t.getWidth(),
+                t.getName(),
+                t.getCallsign(),
+                t.getImoNo(),
+                t.getDestination(),
+                t.getDraught(),
+                timestamp(t.getEta()),
+                t.getVesselType(),
+                t.getMaxSpeed() != null ? t.getMaxSpeed().clone() : null,
+                lastPos != null ? lastPos.getLat() : null,
+                lastPos != null ? lastPos.getLon() : null,
+                lastPos != null ? lastPos.getCog() : null,
+                lastPos != null ? lastPos.getSog() : null,
+                lastPos != null ? timestamp(lastPos.getTime()) : null
+        };
+        TargetUpdate update = new TargetUpdate(t, t.changed(), row);
+
+        // Append the new position to the past track segment of its hour
+        List<PastTrackSegment> segments = t.getPastTrackSegments();
+        if (newPos != null) {
+            long hourStart = PastTrackSegment.hourStart(newPos.getTime().getTime());
+            PastTrackSegment segment = segments != null ? segments.get(segments.size() - 1) : null;
+            if (segment == null || segment.getHourStart() != hourStart) {
+                segment = new PastTrackSegment(hourStart);
+                if (segments == null) {
+                    segments = new ArrayList<>(2);
+                    t.setPastTrackSegments(segments);
+                }
+                segments.add(segment);
+            }
+            segment.append(newPos);
+        }
+        if (segments != null) {
+            for (PastTrackSegment segment : segments) {
+                if (segment.getPoints() != segment.getCommittedPoints()) {
+                    update.chunks.add(new SegmentChunk(segment, segment.toChunk(), segment.getPoints()));
+                }
+            }
+        }
+        return update;
+    }
+
+    /**
+     * Writes the given target snapshots and their new past track positions to the database
+     * in a single transaction.
+     * <p>
+     * The new past track positions are appended to the segments of the {@linkplain PastTrackPartitions}
+     * day tables. The last past track position of each vessel is written with the vessel target.
+     * <p>
+     * When the method returns, the transaction has been committed, and
+     * {@linkplain TargetUpdate#committed()} should be called for the updates.
+     *
+     * @param updates the target snapshots to write
+     */
+    @Transactional
+    public void write(List<TargetUpdate> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+
+        // Insert or update the vessel targets
+        for (List<TargetUpdate> batch : Lists.partition(updates, batchSize)) {
+            jdbcTemplate.batchUpdate(upsertTargetSql, batch.stream()
+                    .map(u -> u.row)
+                    .collect(Collectors.toList()));
+        }
+
+        // Append the new past track positions
+        partitions.writeSegments(updates.stream()
+                .filter(TargetUpdate::hasNewPastTrackPos)
+                .collect(Collectors.toList()));
+    }
+
+    private static Integer ordinal(Enum<?> value) {
+        return value != null ? value.ordinal() : null;
+    }
+
+    private static Timestamp timestamp(Date date) {
+        return date != null ? new Timestamp(date.getTime()) : null;
+    }
+
+    /**
+     * A snapshot of the persisted state of a vessel target
+     */
+    public static class TargetUpdate {
+        final VesselTarget target;
+        final VesselTarget.State state;
+        final Object[] row;
+        final List<SegmentChunk> chunks = new ArrayList<>(1);
+
+        /**
+         * Constructor
+         * @param target the target
+         * @param state the changed state of the target
+         * @param row the column values of the target
+         */
+        TargetUpdate(VesselTarget target, VesselTarget.State state, Object[] row) {
+            this.target = target;
+            this.state = state;
+            this.row = row;
+        }
+
+        /**
+         * Called when the update has been committed. Records the committed past track segment chunks,
+         * and releases the segments of past hours once all their positions have been committed
+         */
+        public void committed() {
+            if (!chunks.isEmpty()) {
+                synchronized (target) {
+                    chunks.forEach(c -> c.segment.committed(c.chunk, c.points));
+                    List<PastTrackSegment> segments = target.getPastTrackSegments();
+                    segments.subList(0, segments.size() - 1)
+                            .removeIf(segment -> segment.getPoints() == segment.getCommittedPoints());
+                }
+            }
+        }
+
+        public VesselTarget.State getState() {
+            return state;
+        }
+
+        public boolean hasNewPastTrackPos() {
+            return !chunks.isEmpty();
+        }
+    }
+
+    /**
+     * A snapshot of the chunk of a past track segment
+     */
+    static class SegmentChunk {
+        final PastTrackSegment segment;
+        final byte[] chunk;
+        final int points;
+
+        /**
+         * Constructor
+         * @param segment the segment
+         * @param chunk the chunk of the segment
+         * @param points the number of positions of the chunk
+         */
+        SegmentChunk(PastTrackSegment segment, byte[] chunk, int points) {
+            this.segment = segment;
+            this.chunk = chunk;
+            this.points = points;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+import dk.dma.enav.model.geometry.Position;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@linkplain GeoUtils#distance} with the rhumb line distance it replaced on the hot paths,
+ * both as {@linkplain GeoUtils#rhumbLineDistance} and as {@code Position.rhumbLineDistanceTo()}.
+ * <p>
+ * The position pairs are the short hops of a past track, i.e. within the fast distance range.
+ * Run with {@code main()} from the test class path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoUtilsBenchmark {
+
+    static final int PAIRS = 1024;
+
+    double[] lat1, lon1, lat2, lon2;
+    int next;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(1);
+        lat1 = new double[PAIRS];
+        lon1 = new double[PAIRS];
+        lat2 = new double[PAIRS];
+        lon2 = new double[PAIRS];
+        for (int i = 0; i < PAIRS; i++) {
+            lat1[i] = rnd.nextDouble() * 140 - 70;
+            lon1[i] = rnd.nextDouble() * 360 - 180;
+            lat2[i] = lat1[i] + (rnd.nextDouble() - 0.5) * 0.01;
+            lon2[i] = lon1[i] + (rnd.nextDouble() - 0.5) * 0.01;
+        }
+    }
+
+    private int nextPair() {
+        return next = (next + 1) & (PAIRS - 1);
+    }
+
+    @Benchmark
+    public double distance() {
+        int i = nextPair();
+        return GeoUtils.distance(lat1[i], lon1[i], lat2[i], lon2[i]);
+    }
+
+    @Benchmark
+    public double rhumbLineDistance() {
+        int i = nextPair();
+        return GeoUtils.rhumbLineDistance(lat1[i], lon1[i], lat2[i], lon2[i]);
+    }
+
+    @Benchmark
+    public double positionRhumbLineDistance() {
+        int i = nextPair();
+        return Position.create(lat1[i], lon1[i]).rhumbLineDistanceTo(Position.create(lat2[i], lon2[i]));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(GeoUtilsBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
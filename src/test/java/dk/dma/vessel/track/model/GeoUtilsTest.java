@@ -0,0 +1,102 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@linkplain GeoUtils}
+ */
+public class GeoUtilsTest {
+
+    /** The max relative error of the fast distance approximation */
+    static final double MAX_ERROR = 0.0001;
+
+    @Test
+    public void testDistanceWithinFastRange() {
+        Random rnd = new Random(1);
+        double maxError = 0;
+        for (int i = 0; i < 1000000; i++) {
+            double lat1 = (rnd.nextDouble() * 2 - 1) * GeoUtils.FAST_DISTANCE_MAX_LAT;
+            double lon1 = rnd.nextDouble() * 360 - 180;
+            double lat2 = lat1 + (rnd.nextDouble() * 2 - 1) * GeoUtils.FAST_DISTANCE_MAX_SPAN;
+            double lon2 = lon1 + (rnd.nextDouble() * 2 - 1) * GeoUtils.FAST_DISTANCE_MAX_SPAN;
+            if (Math.abs(lat2) > GeoUtils.FAST_DISTANCE_MAX_LAT) {
+                continue;
+            }
+            maxError = Math.max(maxError, relativeError(lat1, lon1, lat2, lon2));
+        }
+        assertTrue("Max relative error " + maxError, maxError < MAX_ERROR);
+    }
+
+    @Test
+    public void testDistanceAtLimits() {
+        double max = GeoUtils.FAST_DISTANCE_MAX_LAT;
+        double span = GeoUtils.FAST_DISTANCE_MAX_SPAN;
+        double[][] pairs = {
+                // The full span at the equator and at the max latitude
+                { 0, 0, span, span },
+                { -span / 2, 10, span / 2, 10 + span },
+                { max - span, 0, max, span },
+                { -max, 0, -max + span, -span },
+                // East-west and north-south lines at the max latitude
+                { max, 0, max, span },
+                { max, 0, max - span, 0 },
+                // Across the anti-meridian
+                { 55, 179.5, 55.5, -179.5 },
+                // Short distances
+                { 55.67, 12.57, 55.67001, 12.57001 },
+                { max, 100, max, 100.00001 }
+        };
+        for (double[] p : pairs) {
+            double error = relativeError(p[0], p[1], p[2], p[3]);
+            assertTrue("Relative error " + error + " for " + Arrays.toString(p), error < MAX_ERROR);
+        }
+    }
+
+    @Test
+    public void testDistanceOutsideFastRange() {
+        double[][] pairs = {
+                // Spans beyond the limit
+                { 0, 0, 1.5, 0 },
+                { 55, 10, 55, 12 },
+                { 10, 170, -10, -170 },
+                // Latitudes beyond the limit
+                { 85.5, 0, 85.6, 0.1 },
+                { -89, 0, -89.5, 0.5 }
+        };
+        for (double[] p : pairs) {
+            assertEquals(GeoUtils.rhumbLineDistance(p[0], p[1], p[2], p[3]),
+                    GeoUtils.distance(p[0], p[1], p[2], p[3]), 0.0);
+        }
+    }
+
+    @Test
+    public void testZeroDistance() {
+        assertEquals(0.0, GeoUtils.distance(55, 12, 55, 12), 0.0);
+    }
+
+    static double relativeError(double lat1, double lon1, double lat2, double lon2) {
+        double expected = GeoUtils.rhumbLineDistance(lat1, lon1, lat2, lon2);
+        double actual = GeoUtils.distance(lat1, lon1, lat2, lon2);
+        return expected > 0 ? Math.abs(actual - expected) / expected : Math.abs(actual);
+    }
+}
@@ -0,0 +1,120 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@linkplain PastTrackSegment}
+ */
+public class PastTrackSegmentTest {
+
+    static final long HOUR_START = PastTrackSegment.hourStart(1420070400000L + 1000000000L);
+
+    static PastTrackPos pos(float lat, float lon, float cog, float sog, long time) {
+        return new PastTrackPos(lat, lon, cog, sog, new Date(time));
+    }
+
+    static void assertPos(TrackBuffer result, int i, float lat, float lon, float cog, float sog, long time) {
+        assertEquals(lat, result.getLat(i), 0.000005f);
+        assertEquals(lon, result.getLon(i), 0.000005f);
+        assertEquals(cog, result.getCog(i), 0.05f);
+        assertEquals(sog, result.getSog(i), 0.05f);
+        assertEquals(time, result.getTime(i));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        PastTrackSegment segment = new PastTrackSegment(HOUR_START);
+        // Positive and negative deltas of one and several varint bytes
+        float[][] positions = {
+                { 55.12345f, 10.54321f, 359.9f, 12.3f },
+                { 55.12344f, 10.54322f, 0f, 0f },
+                { -33.5f, -170.25f, 180.5f, 102.2f },
+                { 89.99999f, 179.99999f, 1.1f, 0.1f },
+                { -89.99999f, -179.99999f, 359.9f, 0f }
+        };
+        long[] times = { HOUR_START, HOUR_START + 1000L, HOUR_START + 60000L, HOUR_START + 1800000L, HOUR_START + 3599000L };
+        for (int i = 0; i < positions.length; i++) {
+            float[] p = positions[i];
+            assertTrue(segment.append(pos(p[0], p[1], p[2], p[3], times[i])));
+        }
+        assertEquals(positions.length, segment.getPoints());
+
+        TrackBuffer result = new TrackBuffer();
+        PastTrackSegment.decode(segment.toChunk(), HOUR_START, 0L, result);
+        assertEquals(positions.length, result.size());
+        for (int i = 0; i < positions.length; i++) {
+            float[] p = positions[i];
+            assertPos(result, i, p[0], p[1], p[2], p[3], times[i]);
+        }
+
+        // Only positions after the given time
+        result = new TrackBuffer();
+        PastTrackSegment.decode(segment.toChunk(), HOUR_START, times[2], result);
+        assertEquals(2, result.size());
+        assertEquals(times[3], result.getTime(0));
+    }
+
+    @Test
+    public void testAppend() {
+        PastTrackSegment segment = new PastTrackSegment(HOUR_START);
+        assertTrue(segment.append(pos(55f, 10f, 0f, 0f, HOUR_START + 1000L)));
+
+        // Not newer than the last position, or outside the hour
+        assertFalse(segment.append(pos(55f, 10f, 0f, 0f, HOUR_START + 1000L)));
+        assertFalse(segment.append(pos(55f, 10f, 0f, 0f, HOUR_START - 1000L)));
+        assertFalse(segment.append(pos(55f, 10f, 0f, 0f, HOUR_START + PastTrackSegment.HOUR)));
+        assertEquals(1, segment.getPoints());
+
+        // Grows beyond the initial buffer
+        for (int i = 2; i < 100; i++) {
+            assertTrue(segment.append(pos(55f + i * 0.01f, 10f - i * 0.01f, i, i % 20, HOUR_START + i * 1000L)));
+        }
+        TrackBuffer result = new TrackBuffer();
+        PastTrackSegment.decode(segment.toChunk(), HOUR_START, 0L, result);
+        assertEquals(99, result.size());
+        assertPos(result, 98, 55f + 99 * 0.01f, 10f - 99 * 0.01f, 99f, 19f, HOUR_START + 99000L);
+    }
+
+    @Test
+    public void testConcatenatedChunks() {
+        // A segment row holds the chunks appended by successive writers
+        PastTrackSegment first = new PastTrackSegment(HOUR_START);
+        first.append(pos(55f, 10f, 90f, 5f, HOUR_START + 1000L));
+        first.append(pos(55.001f, 10.001f, 91f, 5.1f, HOUR_START + 2000L));
+        PastTrackSegment second = new PastTrackSegment(HOUR_START);
+        second.append(pos(56f, 11f, 180f, 6f, HOUR_START + 3000L));
+
+        byte[] a = first.toChunk();
+        byte[] b = second.toChunk();
+        byte[] data = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, data, a.length, b.length);
+
+        TrackBuffer result = new TrackBuffer();
+        PastTrackSegment.decode(data, HOUR_START, 0L, result);
+        assertEquals(3, result.size());
+        assertPos(result, 0, 55f, 10f, 90f, 5f, HOUR_START + 1000L);
+        assertPos(result, 1, 55.001f, 10.001f, 91f, 5.1f, HOUR_START + 2000L);
+        assertPos(result, 2, 56f, 11f, 180f, 6f, HOUR_START + 3000L);
+    }
+}
@@ -0,0 +1,233 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@linkplain PastTrack}
+ */
+public class PastTrackTest {
+
+    static final long T0 = 1420070400000L + 1000000000L;
+    static final long MINUTE = 60000L;
+
+    @Test
+    public void testPowerOfTwoSize() {
+        new PastTrack(0L, 1);
+        new PastTrack(0L, 2048, new int[] { 1000, 10000 });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPowerOfTwoSize() {
+        new PastTrack(0L, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroSize() {
+        new PastTrack(0L, 0);
+    }
+
+    @Test
+    public void testAdd() {
+        PastTrack track = new PastTrack(T0, 16);
+        assertTrue(track.add(55f, 10f, 12.3f, 4.5f, T0, 100, MINUTE));
+
+        // Too soon, too close or older than the newest position
+        assertFalse(track.add(55.01f, 10f, 0f, 0f, T0 + MINUTE / 2, 100, MINUTE));
+        assertFalse(track.add(55.0001f, 10f, 0f, 0f, T0 + MINUTE, 100, MINUTE));
+        assertFalse(track.add(55.01f, 10f, 0f, 0f, T0 - MINUTE, 100, 0L));
+        assertTrue(track.add(55.01f, 10f, 0f, 0f, T0 + MINUTE, 100, MINUTE));
+        assertEquals(2, track.size());
+
+        TrackBuffer result = new TrackBuffer();
+        track.copyTo(0L, result);
+        assertEquals(55f, result.getLat(0), 0f);
+        assertEquals(10f, result.getLon(0), 0f);
+        assertEquals(12.3f, result.getCog(0), 0.001f);
+        assertEquals(4.5f, result.getSog(0), 0.001f);
+        assertEquals(T0, result.getTime(0));
+        assertEquals(T0 + MINUTE, result.getTime(1));
+    }
+
+    @Test
+    public void testEviction() {
+        PastTrack track = new PastTrack(T0, 8);
+        addPositions(track, 0, 20);
+
+        // Only the newest positions are kept, and the covered period shrinks accordingly
+        assertEquals(8, track.size());
+        assertEquals(time(12), track.getCoveredSince());
+        assertPositions(track, 0L, 12, 20);
+    }
+
+    @Test
+    public void testWrapAround() {
+        PastTrack track = new PastTrack(T0, 32);
+        addPositions(track, 0, 20);
+        assertEquals(10, track.trim(time(10)));
+        assertPositions(track, 0L, 10, 20);
+
+        // Grows and wraps around the end of the arrays before it is full
+        addPositions(track, 20, 42);
+        assertEquals(32, track.size());
+        assertEquals(time(10), track.getCoveredSince());
+        assertPositions(track, 0L, 10, 42);
+
+        // Evicts from the wrapped head
+        addPositions(track, 42, 50);
+        assertEquals(32, track.size());
+        assertEquals(time(18), track.getCoveredSince());
+        assertPositions(track, 0L, 18, 50);
+    }
+
+    @Test
+    public void testTrim() {
+        PastTrack track = new PastTrack(T0, 16);
+        addPositions(track, 0, 10);
+        assertEquals(0, track.trim(time(0)));
+        assertEquals(4, track.trim(time(3) + 1));
+        assertEquals(6, track.size());
+        assertEquals(time(3) + 1, track.getCoveredSince());
+        assertPositions(track, 0L, 4, 10);
+
+        assertEquals(6, track.trim(time(100)));
+        assertEquals(0, track.size());
+        assertEquals(time(100), track.getCoveredSince());
+    }
+
+    @Test
+    public void testCopyToSince() {
+        PastTrack track = new PastTrack(T0, 16);
+        addPositions(track, 0, 10);
+        assertPositions(track, time(5), 5, 10);
+        assertPositions(track, time(5) - 1, 5, 10);
+        assertPositions(track, time(10), 10, 10);
+    }
+
+    @Test
+    public void testSeed() {
+        PastTrack track = new PastTrack(time(10), 32);
+        addPositions(track, 10, 20);
+
+        // Positions before the since time, and positions overlapping the past track, are skipped
+        TrackBuffer older = new TrackBuffer();
+        for (int i = 14; i >= 0; i--) {
+            older.add(lat(i), 10f, 0f, 0f, time(i));
+        }
+        track.seed(older, time(2));
+        assertEquals(18, track.size());
+        assertEquals(time(2), track.getCoveredSince());
+        assertPositions(track, 0L, 2, 20);
+
+        // Seeding beyond the max size keeps the newest positions
+        track = new PastTrack(time(10), 8);
+        addPositions(track, 10, 14);
+        track.seed(older, time(0));
+        assertEquals(8, track.size());
+        assertEquals(time(6), track.getCoveredSince());
+        assertPositions(track, 0L, 6, 14);
+    }
+
+    @Test
+    public void testLevels() {
+        int[] levelDists = { 1000, 10000 };
+        PastTrack track = new PastTrack(T0, 1024, levelDists);
+        // About 670 meters apart
+        for (int i = 0; i < 300; i++) {
+            track.add(55f + i * 0.006f, 10f, 0f, 0f, time(i), 0, 0L);
+        }
+        assertEquals(300, track.size());
+
+        TrackBuffer full = new TrackBuffer();
+        track.copyTo(T0, 500, full);
+        assertEquals(300, full.size());
+
+        // Each level keeps the first position, and then positions further apart than its min distance
+        int prevSize = full.size();
+        for (int l = 0; l < levelDists.length; l++) {
+            TrackBuffer level = new TrackBuffer();
+            track.copyTo(T0, levelDists[l], level);
+            assertTrue(level.size() < prevSize);
+            assertEquals(T0, level.getTime(0));
+            for (int i = 1; i < level.size(); i++) {
+                double dist = GeoUtils.distance(level.getLat(i - 1), level.getLon(i - 1), level.getLat(i), level.getLon(i));
+                assertTrue(dist > levelDists[l]);
+                assertTrue(level.getTime(i) > level.getTime(i - 1));
+            }
+            prevSize = level.size();
+
+            // Served from the coarsest level not exceeding the requested distance
+            TrackBuffer coarser = new TrackBuffer();
+            track.copyTo(T0, levelDists[l] + 1, coarser);
+            assertEquals(level.size(), coarser.size());
+        }
+
+        // Trimming applies to the levels too
+        track.trim(time(150));
+        TrackBuffer level = new TrackBuffer();
+        track.copyTo(0L, 1000, level);
+        assertTrue(level.getTime(0) >= time(150));
+    }
+
+    @Test
+    public void testLevelCoverage() {
+        PastTrack track = new PastTrack(T0, 8, new int[] { 1000 });
+        for (int i = 0; i < 20; i++) {
+            track.add(55f + i * 0.006f, 10f, 0f, 0f, time(i), 0, 0L);
+        }
+
+        // The level covers a longer period than the full past track, which has evicted more positions
+        TrackBuffer result = new TrackBuffer();
+        track.copyTo(time(4), 1000, result);
+        assertEquals(time(4), result.getTime(0));
+        assertEquals(8, result.size());
+
+        // Requests beyond the coverage of the level fall back to the full past track
+        result = new TrackBuffer();
+        track.copyTo(T0, 1000, result);
+        assertEquals(8, result.size());
+    }
+
+    private static long time(int i) {
+        return T0 + i * MINUTE;
+    }
+
+    private static float lat(int i) {
+        return 55f + i * 0.01f;
+    }
+
+    /** Adds the positions from, inclusive, to, exclusive, about 1.1 km and a minute apart */
+    private static void addPositions(PastTrack track, int from, int to) {
+        for (int i = from; i < to; i++) {
+            assertTrue(track.add(lat(i), 10f, 0f, 0f, time(i), 100, MINUTE));
+        }
+    }
+
+    /** Asserts that the positions since the given time are the positions from, inclusive, to, exclusive */
+    private static void assertPositions(PastTrack track, long since, int from, int to) {
+        TrackBuffer result = new TrackBuffer();
+        track.copyTo(since, result);
+        assertEquals(to - from, result.size());
+        for (int j = 0; j < result.size(); j++) {
+            assertEquals(time(from + j), result.getTime(j));
+            assertEquals(lat(from + j), result.getLat(j), 0f);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import com.sun.net.httpserver.HttpServer;
+import dk.dma.vessel.track.model.TrackBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@linkplain AisStoreClient} against a local stub AIS-store
+ */
+public class AisStoreClientTest {
+
+    static final long BUCKET = Duration.ofHours(1).toMillis();
+
+    HttpServer server;
+    AisStoreClient client;
+
+    /** The query strings of the requests received by the stub AIS-store */
+    List<String> queries = new CopyOnWriteArrayList<>();
+    CountDownLatch received = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        // The stub AIS-store returns an empty track, but holds back the end of the response until released
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/store/query", exchange -> {
+            queries.add(exchange.getRequestURI().getQuery());
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.flush();
+                received.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.start();
+
+        client = new AisStoreClient();
+        client.aisViewUrl = "http://localhost:" + server.getAddress().getPort() + "/store/query";
+        client.aisAuthHeader = "";
+        client.pastTrackTtl = "PT12H";
+        client.pastTrackMinDist = "100";
+        client.pastTrackSimplifier = "douglas-peucker";
+        client.cachePositions = 1000;
+        client.cacheBucket = "PT1H";
+        client.init();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testBucketAlignment() {
+        release.countDown();
+        long now = System.currentTimeMillis();
+        assertNotNull(client.getPastTrack(1, null, Duration.ofHours(2), null));
+        assertEquals(1, queries.size());
+
+        // The requested period ends at the end of the current bucket
+        String interval = queries.get(0).replaceAll(".*interval=([^&]*).*", "$1");
+        long from = Instant.parse(interval.split("/")[0]).toEpochMilli();
+        long to = Instant.parse(interval.split("/")[1]).toEpochMilli();
+        assertEquals(0, to % BUCKET);
+        assertTrue(to > now && to - BUCKET <= now);
+        assertEquals(Duration.ofHours(2).toMillis(), to - from);
+
+        // Requests within the bucket are served from the cache, unless the MMSI or age differs
+        assertNotNull(client.getPastTrack(1, 500, Duration.ofHours(2), null));
+        assertEquals(1, queries.size());
+        client.getPastTrack(1, null, Duration.ofHours(3), null);
+        client.getPastTrack(2, null, Duration.ofHours(2), null);
+        assertEquals(3, queries.size());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        List<TrackBuffer> tracks = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> tracks.add(client.getPastTrack(1, null, null, null)));
+            threads.add(thread);
+            thread.start();
+        }
+
+        // Let the other threads queue up behind the first fetch
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+
+        assertEquals(1, queries.size());
+        assertEquals(4, tracks.size());
+        tracks.forEach(track -> assertNotNull(track));
+    }
+
+    @Test
+    public void testInterruptedSharedFetch() throws Exception {
+        TrackBuffer[] tracks = new TrackBuffer[2];
+        boolean[] interrupted = new boolean[1];
+        Thread fetcher = new Thread(() -> {
+            tracks[0] = client.getPastTrack(1, null, null, null);
+            interrupted[0] = Thread.currentThread().isInterrupted();
+        });
+        Thread waiter = new Thread(() -> tracks[1] = client.getPastTrack(1, null, null, null));
+        fetcher.start();
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        waiter.start();
+        Thread.sleep(200);
+
+        // The interrupted thread gives up, whereas the waiting thread retries the fetch
+        fetcher.interrupt();
+        fetcher.join(10000);
+        assertNull(tracks[0]);
+        assertTrue(interrupted[0]);
+        release.countDown();
+        waiter.join(10000);
+        assertFalse(waiter.isAlive());
+        assertNotNull(tracks[1]);
+        assertEquals(2, queries.size());
+    }
+}
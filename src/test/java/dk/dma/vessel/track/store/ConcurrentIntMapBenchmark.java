@@ -0,0 +1,113 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the MMSI look-ups and updates of the {@linkplain ConcurrentIntMap}
+ * with a {@code ConcurrentHashMap<Integer, V>} holding the same number of targets.
+ * <p>
+ * Run with {@code main()} from the test class path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ConcurrentIntMapBenchmark {
+
+    static final int TARGETS = 200000;
+
+    int[] mmsis;
+    ConcurrentIntMap<Object> intMap;
+    ConcurrentHashMap<Integer, Object> hashMap;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(1);
+        mmsis = new int[TARGETS];
+        intMap = new ConcurrentIntMap<>();
+        hashMap = new ConcurrentHashMap<>();
+        for (int i = 0; i < TARGETS; i++) {
+            mmsis[i] = 200000000 + rnd.nextInt(600000000);
+            Object value = new Object();
+            intMap.put(mmsis[i], value);
+            hashMap.put(mmsis[i], value);
+        }
+    }
+
+    private int nextMmsi() {
+        return mmsis[ThreadLocalRandom.current().nextInt(TARGETS)];
+    }
+
+    @Benchmark
+    public Object intMapGet() {
+        return intMap.get(nextMmsi());
+    }
+
+    @Benchmark
+    public Object hashMapGet() {
+        return hashMap.get(nextMmsi());
+    }
+
+    @Benchmark
+    public Object intMapComputeIfAbsent() {
+        return intMap.computeIfAbsent(nextMmsi(), k -> new Object());
+    }
+
+    @Benchmark
+    public Object hashMapComputeIfAbsent() {
+        return hashMap.computeIfAbsent(nextMmsi(), k -> new Object());
+    }
+
+    @Benchmark
+    public Object intMapPut() {
+        int mmsi = nextMmsi();
+        return intMap.put(mmsi, mmsi);
+    }
+
+    @Benchmark
+    public Object hashMapPut() {
+        int mmsi = nextMmsi();
+        return hashMap.put(mmsi, mmsi);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ConcurrentIntMapBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
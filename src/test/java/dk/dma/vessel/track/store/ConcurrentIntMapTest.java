@@ -0,0 +1,213 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@linkplain ConcurrentIntMap}
+ */
+public class ConcurrentIntMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        ConcurrentIntMap<String> map = new ConcurrentIntMap<>();
+        assertNull(map.put(219000001, "a"));
+        assertEquals("a", map.put(219000001, "b"));
+        assertEquals("b", map.putIfAbsent(219000001, "c"));
+        assertEquals("b", map.get(219000001));
+        assertNull(map.get(219000002));
+        assertNull(map.get(0));
+        assertEquals(1, map.size());
+
+        assertFalse(map.remove(219000001, "a"));
+        assertTrue(map.remove(219000001, "b"));
+        assertNull(map.remove(219000001));
+        assertEquals(0, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroKey() {
+        new ConcurrentIntMap<String>().put(0, "a");
+    }
+
+    @Test
+    public void testResize() {
+        // A single small segment is resized many times
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<>(4, 1);
+        for (int key = 1; key <= 100000; key++) {
+            map.put(key * 7919, key);
+            if (key % 10000 == 0) {
+                assertEquals(key, map.size());
+            }
+        }
+        for (int key = 1; key <= 100000; key++) {
+            assertEquals(Integer.valueOf(key), map.get(key * 7919));
+        }
+        assertEquals(100000, map.values().size());
+    }
+
+    @Test
+    public void testRemoveKeepsProbeSequences() {
+        // Removed slots are refilled by shifting back the subsequent entries rather than
+        // marked with tombstones, so look-ups must still find every remaining key.
+        // Negative keys and a single segment give long, wrapping probe sequences
+        Random rnd = new Random(42);
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<>(16, 1);
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int op = 0; op < 200000; op++) {
+            int key = rnd.nextInt(2000) - 1000;
+            if (key == 0) {
+                continue;
+            }
+            if (rnd.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, op), map.put(key, op));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (int key = -1000; key < 1000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void testRemoveIf() {
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<>(16, 4);
+        for (int key = 1; key <= 10000; key++) {
+            map.put(key, key);
+        }
+        assertEquals(5000, map.removeIf(v -> v % 2 == 0));
+        assertEquals(5000, map.size());
+        for (int key = 1; key <= 10000; key++) {
+            assertEquals(key % 2 == 0 ? null : Integer.valueOf(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void testComputeIfAbsentUnderContention() throws Exception {
+        int threads = 8, keys = 10000;
+        ConcurrentIntMap<Object> map = new ConcurrentIntMap<>(16, 4);
+        AtomicIntegerArray calls = new AtomicIntegerArray(keys + 1);
+        Object[][] seen = new Object[threads][keys + 1];
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Object[] values = seen[t];
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int key = 1; key <= keys; key++) {
+                        values[key] = map.computeIfAbsent(key, k -> {
+                            calls.incrementAndGet(k);
+                            return new Object();
+                        });
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Each value is computed once, and all threads see the same instance
+        assertEquals(keys, map.size());
+        for (int key = 1; key <= keys; key++) {
+            assertEquals(1, calls.get(key));
+            for (int t = 0; t < threads; t++) {
+                assertSame(map.get(key), seen[t][key]);
+            }
+        }
+    }
+
+    @Test
+    public void testIterationDuringWrites() throws Exception {
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<>(16, 8);
+        for (int key = 1; key <= 1000; key++) {
+            map.put(key, key);
+        }
+
+        // The writer adds and removes other keys, resizing and shifting the segments
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            Random rnd = new Random(7);
+            while (!stop.get()) {
+                int key = 1001 + rnd.nextInt(100000);
+                if (rnd.nextBoolean()) {
+                    map.put(key, key);
+                } else {
+                    map.remove(key);
+                }
+            }
+        });
+        writer.start();
+        try {
+            for (int i = 0; i < 500; i++) {
+                // Each stable value must be returned exactly once
+                Set<Integer> values = Collections.newSetFromMap(new IdentityHashMap<>());
+                int stable = 0;
+                for (Iterator<Integer> it = map.values().iterator(); it.hasNext(); ) {
+                    Integer value = it.next();
+                    assertTrue("Value returned twice: " + value, values.add(value));
+                    if (value <= 1000) {
+                        stable++;
+                    }
+                }
+                assertEquals(1000, stable);
+
+                int[] count = { 0 };
+                map.forEach(v -> {
+                    if (v <= 1000) {
+                        count[0]++;
+                    }
+                });
+                assertEquals(1000, count[0]);
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@linkplain ExpiryWheel}
+ */
+public class ExpiryWheelTest {
+
+    @Test
+    public void testDeadlines() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(10000, 1000, 0);
+        wheel.schedule("a", 2500);
+        wheel.schedule("b", 5000);
+        wheel.schedule("c", 100000);
+
+        List<String> expired = new ArrayList<>();
+        assertEquals(0, wheel.advance(1999, expired::add));
+        assertEquals(1, wheel.advance(2000, expired::add));
+        assertEquals(1, wheel.advance(5000, expired::add));
+        assertEquals("[a, b]", expired.toString());
+
+        // Deadlines beyond the horizon end up in the last slot
+        expired.clear();
+        wheel.advance(20000, expired::add);
+        assertEquals("[c]", expired.toString());
+    }
+
+    @Test
+    public void testPastDeadline() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(10000, 1000, 10000);
+        wheel.schedule("a", 0);
+        List<String> expired = new ArrayList<>();
+        wheel.advance(11000, expired::add);
+        assertEquals("[a]", expired.toString());
+    }
+
+    @Test
+    public void testScheduleWhileAdvancing() throws Exception {
+        ExpiryWheel<Object> wheel = new ExpiryWheel<>(64, 1, 0);
+        AtomicLong now = new AtomicLong();
+        AtomicInteger scheduled = new AtomicInteger();
+        AtomicInteger handled = new AtomicInteger();
+        long[] maxDelay = new long[1];
+
+        // Entries are all due right away, so each must be handed out within a couple of ticks
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 200000; j++) {
+                    long time = now.get();
+                    wheel.schedule(new long[] { time }, time);
+                    scheduled.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        while (threads.stream().anyMatch(Thread::isAlive)) {
+            long time = now.incrementAndGet();
+            wheel.advance(time, e -> {
+                maxDelay[0] = Math.max(maxDelay[0], time - ((long[])e)[0]);
+                handled.incrementAndGet();
+            });
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long time = now.addAndGet(2);
+        wheel.advance(time, e -> {
+            maxDelay[0] = Math.max(maxDelay[0], time - ((long[])e)[0]);
+            handled.incrementAndGet();
+        });
+
+        assertEquals(scheduled.get(), handled.get());
+        assertTrue("Entries delayed by " + maxDelay[0] + " ticks", maxDelay[0] < 64);
+    }
+}
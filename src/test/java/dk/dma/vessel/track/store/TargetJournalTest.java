@@ -0,0 +1,53 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import org.junit.Test;
+
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@linkplain TargetJournal}
+ */
+public class TargetJournalTest {
+
+    @Test
+    public void testRollWaitsForAppend() throws Exception {
+        TargetJournal journal = new TargetJournal();
+        long[] rolled = { -1 };
+        Thread roller = new Thread(() -> rolled[0] = journal.roll());
+
+        // An update being appended and queued holds back the roll of its epoch
+        Lock appendLock = journal.appendLock();
+        appendLock.lock();
+        try {
+            roller.start();
+            roller.join(200);
+            assertTrue(roller.isAlive());
+            assertEquals(0, journal.epoch);
+        } finally {
+            appendLock.unlock();
+        }
+
+        roller.join(10000);
+        assertFalse(roller.isAlive());
+        assertEquals(0, rolled[0]);
+        assertEquals(1, journal.epoch);
+    }
+}
@@ -0,0 +1,68 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.vessel.track.store;
+
+import dk.dma.vessel.track.model.PastTrackPos;
+import dk.dma.vessel.track.model.PastTrackSegment;
+import dk.dma.vessel.track.model.VesselTarget;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@linkplain VesselTargetWriter}
+ */
+public class VesselTargetWriterTest {
+
+    static final long HOUR_START = PastTrackSegment.hourStart(1420070400000L + 1000000000L);
+
+    static PastTrackPos pos(float lat, long time) {
+        return new PastTrackPos(lat, 10f, 0f, 0f, new Date(time));
+    }
+
+    @Test
+    public void testRetryAcrossHours() {
+        VesselTargetWriter writer = new VesselTargetWriter();
+        VesselTarget t = new VesselTarget(219000001);
+
+        // The write of the first snapshot fails
+        VesselTargetWriter.TargetUpdate failed = writer.snapshot(t, pos(55f, HOUR_START + PastTrackSegment.HOUR - 60000L));
+        assertEquals(1, failed.chunks.size());
+
+        // The retry with a position of the next hour still includes the uncommitted segment of the previous hour
+        VesselTargetWriter.TargetUpdate retry = writer.snapshot(t, pos(55.01f, HOUR_START + PastTrackSegment.HOUR));
+        assertEquals(2, retry.chunks.size());
+        assertEquals(HOUR_START, retry.chunks.get(0).segment.getHourStart());
+        assertEquals(1, retry.chunks.get(0).points);
+        assertEquals(HOUR_START + PastTrackSegment.HOUR, retry.chunks.get(1).segment.getHourStart());
+        assertEquals(2, t.getPastTrackSegments().size());
+
+        // Once committed, only the segment of the current hour is kept
+        retry.committed();
+        assertEquals(1, t.getPastTrackSegments().size());
+        assertSame(retry.chunks.get(1).segment, t.getPastTrackSegments().get(0));
+        assertFalse(writer.snapshot(t, null).hasNewPastTrackPos());
+
+        VesselTargetWriter.TargetUpdate next = writer.snapshot(t, pos(55.02f, HOUR_START + PastTrackSegment.HOUR + 60000L));
+        assertTrue(next.hasNewPastTrackPos());
+        assertEquals(1, next.chunks.size());
+        assertEquals(2, next.chunks.get(0).points);
+    }
+}